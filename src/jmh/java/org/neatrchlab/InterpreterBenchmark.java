@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import org.onosproject.bmv2.api.context.Bmv2InterpreterException;
+import org.onosproject.bmv2.api.runtime.Bmv2Action;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the translation of treatments to BMv2 actions, as done by the driver for every flow rule.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+
+    private static final int PORTS = 64;
+
+    private final StatefulP4Interpreter interpreter = new StatefulP4Interpreter();
+    private final TrafficTreatment[] forward = new TrafficTreatment[PORTS];
+    private TrafficTreatment drop;
+    private TrafficTreatment toController;
+    private int counter;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < PORTS; i++) {
+            forward[i] = DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(i + 1)).build();
+        }
+        drop = DefaultTrafficTreatment.emptyTreatment();
+        toController = DefaultTrafficTreatment.builder().setOutput(PortNumber.CONTROLLER).build();
+    }
+
+    @Benchmark
+    public Bmv2Action forward() throws Bmv2InterpreterException {
+        return interpreter.mapTreatment(forward[counter++ & (PORTS - 1)], AppComponent.STATEFUL_CONFIGURATION);
+    }
+
+    @Benchmark
+    public Bmv2Action drop() throws Bmv2InterpreterException {
+        return interpreter.mapTreatment(drop, AppComponent.STATEFUL_CONFIGURATION);
+    }
+
+    @Benchmark
+    public Bmv2Action sendToCpu() throws Bmv2InterpreterException {
+        return interpreter.mapTreatment(toController, AppComponent.STATEFUL_CONFIGURATION);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionTreatment;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.TrafficSelector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the BMv2 extension selectors and treatments of a binding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleConstructionBenchmark {
+
+    private final DeviceId deviceId = DeviceId.deviceId("bmv2:127.0.0.1:40123#1");
+    private int counter;
+
+    @Benchmark
+    public TrafficSelector selector() {
+        int host = counter++ & 0xffff;
+        return StatefulP4Command.buildTrafficSelector("10.0." + (host >> 8) + "." + (host & 0xff),
+                                                      "10.1.0.1", "6", deviceId);
+    }
+
+    @Benchmark
+    public Bmv2ExtensionTreatment getStateTreatment() {
+        return AppComponent.buildGetStateTreatment(StatefulP4Interpreter.GET_STATE_WITH_TCP_FLAG, (short) 1,
+                                                   (short) (counter++ & 0x3ff));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.collect.Lists;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of dividing the rules generated for a synthetic fabric per device, as done by generateFlowRules.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PartitionBenchmark {
+
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "org.neatrchlab.benchmark");
+
+    @Param({"100", "400"})
+    private int devices;
+
+    @Param({"50"})
+    private int rulesPerDevice;
+
+    private List<DeviceId> deviceIds;
+    private List<FlowRule> rules;
+
+    @Setup
+    public void setup() {
+        deviceIds = Lists.newArrayListWithCapacity(devices);
+        rules = Lists.newArrayListWithCapacity(devices * rulesPerDevice);
+        for (int d = 0; d < devices; d++) {
+            DeviceId deviceId = DeviceId.deviceId("bmv2:10.0." + (d >> 8) + "." + (d & 0xff) + ":40123#" + d);
+            deviceIds.add(deviceId);
+            for (int r = 0; r < rulesPerDevice; r++) {
+                rules.add(DefaultFlowRule.builder()
+                                  .forDevice(deviceId)
+                                  .forTable(1)
+                                  .fromApp(APP_ID)
+                                  .withPriority(r + 1)
+                                  .withSelector(DefaultTrafficSelector.builder()
+                                                        .matchInPort(PortNumber.portNumber(r + 1)).build())
+                                  .withTreatment(DefaultTrafficTreatment.builder()
+                                                         .setOutput(PortNumber.portNumber(r + 2)).build())
+                                  .makePermanent()
+                                  .build());
+            }
+        }
+        // Spread the rules of each device over the whole list.
+        Collections.shuffle(rules, new Random(42));
+    }
+
+    @Benchmark
+    public Map<DeviceId, List<FlowRule>> partitionByDevice() {
+        return AbstractUpgradableFabricApp.partitionByDevice(deviceIds.stream(), rules);
+    }
+}
@@ -16,40 +16,99 @@
 package org.neatrchlab;
 
 import com.eclipsesource.json.Json;
-import com.eclipsesource.json.JsonObject;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.Service;
+import org.neatrchlab.service.PortLoad;
+import org.neatrchlab.service.PrefixAggregator;
+import org.neatrchlab.service.PrefixBinding;
+import org.neatrchlab.service.StateDelta;
+import org.neatrchlab.service.StateListener;
+import org.neatrchlab.service.StatefulBinding;
 import org.neatrchlab.service.StatefulP4Service;
 import org.neatrchlab.service.AbstractUpgradableFabricApp;
+import org.onlab.packet.Ip4Address;
 import org.onosproject.bmv2.api.context.Bmv2Configuration;
 import org.onosproject.bmv2.api.context.Bmv2DefaultConfiguration;
 import org.onosproject.bmv2.api.context.Bmv2DeviceContext;
+import org.onosproject.bmv2.api.runtime.Bmv2ExactMatchParam;
 import org.onosproject.bmv2.api.runtime.Bmv2ExtensionSelector;
 import org.onosproject.bmv2.api.runtime.Bmv2ExtensionTreatment;
+import org.onosproject.bmv2.api.runtime.Bmv2MatchParam;
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.bmv2.api.runtime.Bmv2TernaryMatchParam;
+import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.net.Device;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.Host;
 import org.onosproject.net.PortNumber;
 
 import org.onosproject.net.topology.Topology;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static org.onlab.util.Tools.getIntegerProperty;
+import static org.onlab.util.Tools.groupedThreads;
+import static org.onlab.util.Tools.isPropertyEnabled;
+
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Dictionary;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
-import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
 import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.ExtensionCriterion;
+import org.onosproject.net.flow.criteria.ExtensionSelector;
 import org.onosproject.net.flow.FlowRule;
-import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
 
 /**
@@ -65,17 +124,195 @@ public class AppComponent extends AbstractUpgradableFabricApp implements Statefu
     private static final String MODEL_NAME = "Stateful";
 
     private static final String JSON_CONFIG_PATH = "/stateful.json";
+    private static final String[] BUILTIN_SERVICES = {"/fsm/sfw.json", "/fsm/slb.json"};
 
     protected static final Bmv2Configuration STATEFUL_CONFIGURATION = loadConfiguration();
+    // Compiled once per class loader and reused for every device and every (re)start.
+    private static final ServiceRegistry SERVICES = loadServices();
     private static final StatefulP4Interpreter STATEFUL_INTERPRETER = new StatefulP4Interpreter();
     private static final Bmv2DeviceContext STATEFUL_CONTEXT =
             new Bmv2DeviceContext(STATEFUL_CONFIGURATION, STATEFUL_INTERPRETER);
 
+    private static final String STATE_REGISTER = "state_register";
+
+    private static final int BULK_BATCH_SIZE = 1000;
+    private static final int BULK_MAX_IN_FLIGHT = 8;
+    private static final int BULK_TIMEOUT = 60;
+
+    private static final int FAN_OUT_PARALLELISM = 8;
+    private static final int OPERATION_TIMEOUT = 30;
+    private static final Predicate<Integer> SUCCEEDED = result -> result == 0;
+
+    private static final int STATE_READERS = 4;
+    private static final int DEFAULT_STATE_POLL_INTERVAL = 1000;
+
+    private static final String[] PORT_COUNTERS = {"ingress_port_counter", "egress_port_counter"};
+    private static final int PORT_SAMPLES = 60;
+    private static final int DEFAULT_PORT_POLL_INTERVAL = 5000;
+
+    private static final long REAPER_TICK = 1000;
+    private static final int DEFAULT_IDLE_TIMEOUT = 300;
+    private static final int DEFAULT_CLOSE_TIMEOUT = 10;
+
+    private static final String[] RECONCILED_TABLES = {StatefulP4Interpreter.FORWARD_TABLE,
+            StatefulP4Interpreter.PREFIX_FORWARD_TABLE, StatefulP4Interpreter.FLOW_FORWARD_TABLE,
+            StatefulP4Interpreter.STATE_TABLE, StatefulP4Interpreter.HASH_STATE_TABLE,
+            StatefulP4Interpreter.FLOW_STATE_TABLE,
+            StatefulP4Interpreter.STATE_TRANSFER_TABLE, StatefulP4Interpreter.ACTION_TABLE};
+    private static final int DEFAULT_RECONCILE_INTERVAL = 30;
+    // Tables holding the entries of single flows, where idle bindings can make room for new ones.
+    private static final Set<String> EVICTABLE_TABLES = ImmutableSet.of(
+            StatefulP4Interpreter.STATE_TABLE, StatefulP4Interpreter.FORWARD_TABLE,
+            StatefulP4Interpreter.FLOW_STATE_TABLE, StatefulP4Interpreter.FLOW_FORWARD_TABLE);
+
+    private static final int DEFAULT_REGISTER_QUOTA = 128;
+    private static final String FLOW_SRC_PORT = "tcp.srcPort";
+    private static final String FLOW_DST_PORT = "tcp.dstPort";
+    private static final String[] FLOW_SRC = {"ipv4.srcAddr", FLOW_SRC_PORT};
+    private static final String[] FLOW_DST = {"ipv4.dstAddr", FLOW_DST_PORT};
+    private static final String FLOW_PROTO = "ipv4.protocol";
+    // Priority of wildcard bindings, raised by the number of bits they match so that the most specific wins.
+    private static final int WILDCARD_PRIORITY = 100;
+
+    @Property(name = "portPollInterval", intValue = DEFAULT_PORT_POLL_INTERVAL,
+            label = "Interval between two reads of the port counters, in milliseconds; 0 to disable")
+    private int portPollInterval = DEFAULT_PORT_POLL_INTERVAL;
+
+    @Property(name = "statePollInterval", intValue = DEFAULT_STATE_POLL_INTERVAL,
+            label = "Interval between two reads of state_register, in milliseconds; 0 to disable. Each read costs " +
+                    "one RPC per cell of the chunks holding bound flows")
+    private int statePollInterval = DEFAULT_STATE_POLL_INTERVAL;
+
+    @Property(name = "evictStateEntries", boolValue = false,
+            label = "Evict the least valuable bindings when state_table or forward_table is full")
+    private boolean evictStateEntries = false;
+
+    @Property(name = "idleTimeout", intValue = DEFAULT_IDLE_TIMEOUT,
+            label = "Seconds without state change or hit of its state entry after which a binding is reclaimed; " +
+                    "0 to disable")
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    @Property(name = "closeTimeout", intValue = DEFAULT_CLOSE_TIMEOUT,
+            label = "Seconds after which a binding in a closed state is reclaimed; 0 to disable")
+    private int closeTimeout = DEFAULT_CLOSE_TIMEOUT;
+
+    @Property(name = "reconcileInterval", intValue = DEFAULT_RECONCILE_INTERVAL,
+            label = "Seconds between two audits of the device tables against the rules of this app; 0 to disable")
+    private int reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+
+    @Property(name = "registerQuota", intValue = DEFAULT_REGISTER_QUOTA,
+            label = "Number of state_register slots reserved to a service on a device when it binds its first flow, " +
+                    "and again for its first wildcard binding, unless its definition sets a registerQuota")
+    private int registerQuota = DEFAULT_REGISTER_QUOTA;
+
     protected DeviceId defaultDeviceId;
 
+    private final ConcurrentMap<DeviceId, DeviceState> deviceStates = Maps.newConcurrentMap();
+
+    private final ExecutorService fanOutExecutor = Executors
+            .newFixedThreadPool(FAN_OUT_PARALLELISM, groupedThreads("onos/statefulp4", "fan-out-%d", log));
+
+    private final ExecutorService stateReaders = Executors
+            .newFixedThreadPool(STATE_READERS, groupedThreads("onos/statefulp4", "state-reader-%d", log));
+    private final ScheduledExecutorService statePoller = Executors
+            .newSingleThreadScheduledExecutor(groupedThreads("onos/statefulp4", "state-poller", log));
+    private ScheduledFuture<?> statePollTask;
+    private StateRegisterMonitor stateMonitor;
+    private RegisterAccess registerAccess;
+
+    // Expiry of idle and closed bindings, advanced by the reaper.
+    private final TimingWheel<Binding> expirations = new TimingWheel<>(REAPER_TICK, System.currentTimeMillis());
+    private final ScheduledExecutorService reaper = Executors
+            .newSingleThreadScheduledExecutor(groupedThreads("onos/statefulp4", "reaper", log));
+    // Zeroing of whole regions given back by wildcard bindings, one write per cell, kept off the reaper.
+    private final ExecutorService regionResetter = Executors
+            .newSingleThreadExecutor(groupedThreads("onos/statefulp4", "region-resetter", log));
+
+    private final ScheduledExecutorService portPoller = Executors
+            .newSingleThreadScheduledExecutor(groupedThreads("onos/statefulp4", "port-poller", log));
+    private ScheduledFuture<?> portPollTask;
+    private PortCounterMonitor portMonitor;
+
+    private final ScheduledExecutorService auditor = Executors
+            .newSingleThreadScheduledExecutor(groupedThreads("onos/statefulp4", "auditor", log));
+    private ScheduledFuture<?> reconcileTask;
+    private TableAccess tableAccess;
+    private TableReconciler tableReconciler;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ComponentConfigService cfgService;
+
     public AppComponent() {
         super(APP_NAME, MODEL_NAME, STATEFUL_CONTEXT);
     }
+
+    @Override
+    public void activate() {
+        registerAccess = new Bmv2RegisterAccess(bmv2Controller);
+        stateMonitor = new StateRegisterMonitor(registerAccess, STATE_REGISTER,
+                                                RegisterSlotAllocator.registerSize(STATEFUL_CONFIGURATION,
+                                                                                   STATE_REGISTER),
+                                                stateReaders);
+        Map<String, Integer> counters = Maps.newLinkedHashMap();
+        for (String counter : PORT_COUNTERS) {
+            counters.put(counter, PortCounterMonitor.counterSize(STATEFUL_CONFIGURATION, counter));
+        }
+        portMonitor = new PortCounterMonitor(new Bmv2CounterAccess(bmv2Controller), counters, PORT_SAMPLES,
+                                             stateReaders);
+        tableAccess = new Bmv2TableAccess(bmv2Controller);
+        tableReconciler = new TableReconciler(tableAccess, STATEFUL_CONFIGURATION, STATEFUL_INTERPRETER,
+                                              Arrays.asList(RECONCILED_TABLES));
+        cfgService.registerProperties(getClass());
+        super.activate();
+        stateMonitor.addListener(this::onStateChange);
+        scheduleStatePoll();
+        reaper.scheduleWithFixedDelay(this::reap, REAPER_TICK, REAPER_TICK, TimeUnit.MILLISECONDS);
+        schedulePortPoll();
+        scheduleReconcile();
+    }
+
+    @Modified
+    public void modified(ComponentContext context) {
+        if (context == null) {
+            return;
+        }
+        Dictionary<?, ?> properties = context.getProperties();
+        evictStateEntries = isPropertyEnabled(properties, "evictStateEntries", false);
+        idleTimeout = getIntegerProperty(properties, "idleTimeout", DEFAULT_IDLE_TIMEOUT);
+        closeTimeout = getIntegerProperty(properties, "closeTimeout", DEFAULT_CLOSE_TIMEOUT);
+        registerQuota = Math.max(1, getIntegerProperty(properties, "registerQuota", DEFAULT_REGISTER_QUOTA));
+        int interval = getIntegerProperty(properties, "statePollInterval", DEFAULT_STATE_POLL_INTERVAL);
+        if (interval != statePollInterval) {
+            statePollInterval = interval;
+            log.info("{} polled every {} ms", STATE_REGISTER, statePollInterval);
+            scheduleStatePoll();
+        }
+        interval = getIntegerProperty(properties, "portPollInterval", DEFAULT_PORT_POLL_INTERVAL);
+        if (interval != portPollInterval) {
+            portPollInterval = interval;
+            log.info("Port counters polled every {} ms", portPollInterval);
+            schedulePortPoll();
+        }
+        interval = getIntegerProperty(properties, "reconcileInterval", DEFAULT_RECONCILE_INTERVAL);
+        if (interval != reconcileInterval) {
+            reconcileInterval = interval;
+            log.info("Device tables audited every {} s", reconcileInterval);
+            scheduleReconcile();
+        }
+    }
+
+    @Override
+    public void deactivate() {
+        cfgService.unregisterProperties(getClass(), false);
+        auditor.shutdownNow();
+        portPoller.shutdownNow();
+        reaper.shutdownNow();
+        regionResetter.shutdownNow();
+        statePoller.shutdownNow();
+        stateReaders.shutdownNow();
+        fanOutExecutor.shutdownNow();
+        super.deactivate();
+    }
     @Override
     public boolean initDevice(DeviceId deviceId) {
         if (deviceId.toString().endsWith("#1")) {
@@ -106,16 +343,27 @@ public class AppComponent extends AbstractUpgradableFabricApp implements Statefu
     }
 
     private static Bmv2Configuration loadConfiguration() {
-        try {
-            JsonObject json = Json.parse(new BufferedReader(new InputStreamReader(
-                    AppComponent.class.getResourceAsStream(JSON_CONFIG_PATH)))).asObject();
-            return Bmv2DefaultConfiguration.parse(json);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                AppComponent.class.getResourceAsStream(JSON_CONFIG_PATH)))) {
+            return Bmv2DefaultConfiguration.parse(Json.parse(reader).asObject());
         } catch (IOException e) {
             throw new RuntimeException("Unable to load configuration", e);
         }
     }
 
-    private Bmv2ExtensionTreatment buildGetStateTreatment(String actionName, short targetId, short registerId) {
+    private static ServiceRegistry loadServices() {
+        ServiceRegistry services = new ServiceRegistry(STATEFUL_CONFIGURATION);
+        for (String path : BUILTIN_SERVICES) {
+            try {
+                services.register(StatefulFsm.load(AppComponent.class.getResourceAsStream(path)));
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to load service " + path, e);
+            }
+        }
+        return services;
+    }
+
+    static Bmv2ExtensionTreatment buildGetStateTreatment(String actionName, short targetId, short registerId) {
         return Bmv2ExtensionTreatment.builder().forConfiguration(STATEFUL_CONFIGURATION)
                 .setActionName(actionName)
                 .addParameter(StatefulP4Interpreter.TARGET_ID, targetId)
@@ -123,194 +371,1257 @@ public class AppComponent extends AbstractUpgradableFabricApp implements Statefu
                 .build();
     }
 
-    private Bmv2ExtensionSelector buildStateTransferSlector(short targetId, byte curState, short trigger) {
-        return Bmv2ExtensionSelector.builder().forConfiguration(STATEFUL_CONFIGURATION)
-                .matchExact(StatefulP4Interpreter.STATE_METADATA, StatefulP4Interpreter.TARGET_ID, targetId)
-                .matchExact(StatefulP4Interpreter.STATE_METADATA, StatefulP4Interpreter.CUR_STATE, curState)
-                .matchExact(StatefulP4Interpreter.STATE_METADATA, StatefulP4Interpreter.TRIGGER, trigger)
+    private List<FlowRule> instantiate(FsmRuleTemplate template, DeviceId deviceId)
+            throws FlowRuleGeneratorException {
+        List<FlowRule> rules = new ArrayList<>(template.entries().size());
+        for (FsmRuleTemplate.Entry entry : template.entries()) {
+            rules.add(flowRuleBuilder(deviceId, entry.tableName())
+                              .withSelector(entry.selector(deviceId))
+                              .withTreatment(entry.treatment(deviceId))
+                              .build());
+        }
+        return rules;
+    }
+
+    private FlowRule buildForwardRule(DeviceId deviceId, String table, TrafficSelector trafficSelector,
+                                      String port)
+            throws FlowRuleGeneratorException {
+        return flowRuleBuilder(deviceId, table)
+                .withSelector(trafficSelector)
+                .withTreatment(DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(port)).build())
+                .build();
+    }
+
+    private FlowRule buildStateRule(DeviceId deviceId, String table, TrafficSelector trafficSelector,
+                                    String actionName, int targetId, int registerId)
+            throws FlowRuleGeneratorException {
+        return flowRuleBuilder(deviceId, table)
+                .withSelector(trafficSelector)
+                .withTreatment(DefaultTrafficTreatment.builder()
+                        .extension(
+                                buildGetStateTreatment(actionName, (short) targetId, (short) registerId),
+                                deviceId
+                        )
+                        .build())
                 .build();
     }
 
-    private Bmv2ExtensionTreatment buildStateTransferTreatment(byte nextState) {
-        return Bmv2ExtensionTreatment.builder().forConfiguration(STATEFUL_CONFIGURATION)
-                .setActionName(StatefulP4Interpreter.STATE_TRANSFER)
-                .addParameter(StatefulP4Interpreter.NEXT_STATE, nextState)
+    private FlowRule buildPrefixForwardRule(DeviceId deviceId, TrafficSelector trafficSelector, String port)
+            throws FlowRuleGeneratorException {
+        return flowRuleBuilder(deviceId, StatefulP4Interpreter.PREFIX_FORWARD_TABLE)
+                .withSelector(trafficSelector)
+                .withTreatment(DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(port)).build())
+                .withPriority(WILDCARD_PRIORITY + matchedBits(trafficSelector))
                 .build();
     }
 
-    private Bmv2ExtensionSelector buildActionSelector(byte nextState) {
-        return Bmv2ExtensionSelector.builder().forConfiguration(STATEFUL_CONFIGURATION)
-                .matchExact(StatefulP4Interpreter.STATE_METADATA, StatefulP4Interpreter.NEXT_STATE, nextState)
+    private FlowRule buildHashedStateRule(DeviceId deviceId, TrafficSelector trafficSelector, String actionName,
+                                          int targetId, RegisterRegions.Region region)
+            throws FlowRuleGeneratorException {
+        Bmv2ExtensionTreatment treatment = Bmv2ExtensionTreatment.builder()
+                .forConfiguration(STATEFUL_CONFIGURATION)
+                .setActionName(actionName)
+                .addParameter(StatefulP4Interpreter.TARGET_ID, (short) targetId)
+                .addParameter(StatefulP4Interpreter.BASE, (short) region.base())
+                .addParameter(StatefulP4Interpreter.SIZE, (short) region.size())
+                .build();
+        return flowRuleBuilder(deviceId, StatefulP4Interpreter.HASH_STATE_TABLE)
+                .withSelector(trafficSelector)
+                .withTreatment(DefaultTrafficTreatment.builder().extension(treatment, deviceId).build())
+                .withPriority(WILDCARD_PRIORITY + matchedBits(trafficSelector))
                 .build();
     }
 
-    private void installForward(TrafficSelector trafficSelector, String port) {
-        try {
-            FlowRule rule = flowRuleBuilder(defaultDeviceId, StatefulP4Interpreter.FORWARD_TABLE)
-                    .withSelector(trafficSelector)
-                    .withTreatment(DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(port)).build())
-                    .build();
-            installFlowRules(Collections.singleton(rule));
-        } catch (Exception e) {
+    /**
+     * Returns a selector matching the single flow of the given exact binding.
+     */
+    static TrafficSelector buildFlowSelector(PrefixBinding binding, DeviceId deviceId) {
+        Bmv2ExtensionSelector extension = Bmv2ExtensionSelector.builder()
+                .forConfiguration(STATEFUL_CONFIGURATION)
+                .matchExact("ipv4", "dstAddr", binding.dstPrefix().address().toOctets())
+                .matchExact("ipv4", "srcAddr", binding.srcPrefix().address().toOctets())
+                .matchExact("ipv4", "protocol", (byte) binding.protocol())
+                .build();
+        return DefaultTrafficSelector.builder().extension(extension, deviceId).build();
+    }
 
+    /**
+     * Returns a selector for the ternary tables matching all the flows of the given binding.
+     */
+    static TrafficSelector buildWildcardSelector(PrefixBinding binding, DeviceId deviceId) {
+        boolean anyProtocol = binding.protocol() == PrefixBinding.ANY_PROTOCOL;
+        Bmv2ExtensionSelector extension = Bmv2ExtensionSelector.builder()
+                .forConfiguration(STATEFUL_CONFIGURATION)
+                .matchTernary("ipv4", "dstAddr", binding.dstPrefix().address().toOctets(),
+                              Ip4Address.makeMaskPrefix(binding.dstPrefix().prefixLength()).toOctets())
+                .matchTernary("ipv4", "srcAddr", binding.srcPrefix().address().toOctets(),
+                              Ip4Address.makeMaskPrefix(binding.srcPrefix().prefixLength()).toOctets())
+                .matchTernary("ipv4", "protocol", new byte[]{anyProtocol ? 0 : (byte) binding.protocol()},
+                              new byte[]{anyProtocol ? 0 : (byte) 0xff})
+                .build();
+        return DefaultTrafficSelector.builder().extension(extension, deviceId).build();
+    }
+
+    /**
+     * Returns the given selector with its extension criteria bound to the given device.
+     */
+    private static TrafficSelector forDevice(TrafficSelector selector, DeviceId deviceId) {
+        boolean bound = selector.criteria().stream()
+                .noneMatch(c -> c.type() == Criterion.Type.EXTENSION &&
+                        !((ExtensionCriterion) c).deviceId().equals(deviceId));
+        if (bound) {
+            return selector;
+        }
+        TrafficSelector.Builder builder = DefaultTrafficSelector.builder();
+        for (Criterion criterion : selector.criteria()) {
+            if (criterion.type() == Criterion.Type.EXTENSION) {
+                builder.extension(((ExtensionCriterion) criterion).extensionSelector(), deviceId);
+            } else {
+                builder.add(criterion);
+            }
         }
+        return builder.build();
+    }
 
+    /**
+     * Returns a hash of the 5-tuple matched by the given selector, the same for both directions of a flow.
+     */
+    private static long flowHash(TrafficSelector selector) {
+        Map<String, Bmv2MatchParam> params = matchParams(selector);
+        if (params.isEmpty()) {
+            return Hashing.murmur3_128().hashInt(selector.hashCode()).asLong();
+        }
+        long src = endpointHash(params, FLOW_SRC);
+        long dst = endpointHash(params, FLOW_DST);
+        Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putLong(Math.min(src, dst))
+                .putLong(Math.max(src, dst));
+        putValue(hasher, params.get(FLOW_PROTO));
+        return hasher.hash().asLong();
     }
 
-    private void installStateTransfer(short targetId, short trigger, byte curState, byte nextState) {
-        TrafficTreatment.Builder treatmentBuilder = DefaultTrafficTreatment.builder();
-        TrafficSelector.Builder selectorBuilder = DefaultTrafficSelector.builder();
+    /**
+     * Returns the number of bits matched by the given selector.
+     */
+    private static int matchedBits(TrafficSelector selector) {
+        int bits = 0;
+        for (Bmv2MatchParam param : matchParams(selector).values()) {
+            if (param instanceof Bmv2ExactMatchParam) {
+                bits += ((Bmv2ExactMatchParam) param).value().size() * Byte.SIZE;
+            } else if (param instanceof Bmv2TernaryMatchParam) {
+                for (byte b : ((Bmv2TernaryMatchParam) param).mask().asArray()) {
+                    bits += Integer.bitCount(b & 0xff);
+                }
+            }
+        }
+        return bits;
+    }
 
-        treatmentBuilder.extension(buildStateTransferTreatment(nextState), defaultDeviceId);
-        selectorBuilder.extension(buildStateTransferSlector(targetId, curState, trigger), defaultDeviceId);
+    private static Map<String, Bmv2MatchParam> matchParams(TrafficSelector selector) {
+        Map<String, Bmv2MatchParam> params = Maps.newHashMap();
+        for (Criterion criterion : selector.criteria()) {
+            if (criterion.type() == Criterion.Type.EXTENSION) {
+                ExtensionSelector extension = ((ExtensionCriterion) criterion).extensionSelector();
+                if (extension instanceof Bmv2ExtensionSelector) {
+                    params.putAll(((Bmv2ExtensionSelector) extension).parameterMap());
+                }
+            }
+        }
+        return params;
+    }
 
-        try {
-            FlowRule rule = flowRuleBuilder(defaultDeviceId, StatefulP4Interpreter.STATE_TRANSFER_TABLE)
-                    .withSelector(selectorBuilder.build())
-                    .withTreatment(treatmentBuilder.build())
-                    .build();
-            installFlowRules(Collections.singleton(rule));
-        } catch (Exception e) {
+    private static long endpointHash(Map<String, Bmv2MatchParam> params, String[] fields) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (String field : fields) {
+            putValue(hasher, params.get(field));
+        }
+        return hasher.hash().asLong();
+    }
 
+    private static void putValue(Hasher hasher, Bmv2MatchParam param) {
+        if (param instanceof Bmv2ExactMatchParam) {
+            hasher.putBytes(((Bmv2ExactMatchParam) param).value().asArray());
         }
+        hasher.putByte((byte) 0);
     }
 
-    private void installAction(byte nextState, TrafficTreatment treatment) {
-        TrafficSelector selector = DefaultTrafficSelector.builder()
-                .extension(buildActionSelector(nextState), defaultDeviceId)
-                .build();
-        try {
-            FlowRule rule = flowRuleBuilder(defaultDeviceId, StatefulP4Interpreter.ACTION_TABLE)
-                    .withSelector(selector)
-                    .withTreatment(treatment)
-                    .build();
-            installFlowRules(Collections.singleton(rule));
-        } catch (Exception e) {
+    private DeviceState deviceState(DeviceId deviceId) {
+        return deviceStates.computeIfAbsent(deviceId, k -> new DeviceState());
+    }
 
+    private DeviceId defaultDevice() {
+        if (defaultDeviceId == null) {
+            for (Device device:deviceService.getAvailableDevices()) {
+                defaultDeviceId = device.id();
+                break;
+            }
         }
+        return defaultDeviceId;
     }
 
-    private void installState(TrafficSelector trafficSelector, String actionName, int targetId, int registerId) {
-        TrafficTreatment.Builder treatmentBuilder = DefaultTrafficTreatment.builder();
+    /**
+     * Runs the given task for each of the given devices (all available devices if empty) on the fan-out
+     * executor, and returns the result of each device.
+     */
+    private Map<DeviceId, Integer> fanOut(Collection<DeviceId> devices, Function<DeviceId, Integer> task) {
+        Collection<DeviceId> targets = devices;
+        if (targets == null || targets.isEmpty()) {
+            targets = Lists.newArrayList();
+            for (Device device : deviceService.getAvailableDevices()) {
+                targets.add(device.id());
+            }
+        }
+
+        Map<DeviceId, CompletableFuture<Integer>> futures = Maps.newLinkedHashMap();
+        for (DeviceId deviceId : targets) {
+            futures.put(deviceId, CompletableFuture.supplyAsync(() -> task.apply(deviceId), fanOutExecutor));
+        }
+
+        ImmutableMap.Builder<DeviceId, Integer> report = ImmutableMap.builder();
+        futures.forEach((deviceId, future) -> {
+            try {
+                report.put(deviceId, future.get(OPERATION_TIMEOUT, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                report.put(deviceId, 1);
+            } catch (ExecutionException | TimeoutException e) {
+                log.warn("Operation failed on {}: {}", deviceId, e.toString());
+                report.put(deviceId, 1);
+            }
+        });
+        return report.build();
+    }
+
+    private static int result(boolean success) {
+        return success ? 0 : 1;
+    }
+
+    /**
+     * Waits for the given operation to be confirmed by the device.
+     */
+    private int await(CompletableFuture<Integer> future) {
         try {
-            FlowRule rule = flowRuleBuilder(defaultDeviceId, StatefulP4Interpreter.STATE_TABLE)
-                    .withSelector(trafficSelector)
-                    .withTreatment(treatmentBuilder
-                            .extension(
-                                    buildGetStateTreatment(actionName, (short) targetId, (short) registerId),
-                                    defaultDeviceId
-                            )
-                            .build())
-                    .build();
-            installFlowRules(Collections.singleton(rule));
-        } catch (Exception e) {
-            log.info(e.toString());
+            return future.get(OPERATION_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Operation failed: {}", e.toString());
+            return 1;
         }
     }
 
-    private static final Map<String, Integer> TARGET_ID_MAP = new HashMap<>();
-    private static final Map<String, String> ACTION_MAP = new HashMap<>();
-    static {
-        TARGET_ID_MAP.put("sfw", 1);
-        TARGET_ID_MAP.put("slb", 2);
-        ACTION_MAP.put("sfw", StatefulP4Interpreter.GET_STATE_WITH_TCP_FLAG);
-        ACTION_MAP.put("slb", StatefulP4Interpreter.GET_SATTE_WITH_NOTHING);
+    @Override
+    public int startService(String service) {
+        return await(startServiceAsync(service, defaultDevice()));
     }
 
-    static final byte ACK = 1 << 4;
-    static final byte PSH = 1 << 3;
-    static final byte RST = 1 << 2;
-    static final byte SYN = 1 << 1;
-    static final byte FIN = 1 << 0;
+    @Override
+    public Map<DeviceId, Integer> startService(String service, Collection<DeviceId> devices) {
+        return fanOut(devices, deviceId -> await(startServiceAsync(service, deviceId)));
+    }
 
-    static final byte TCP_INIT = 0;
-    static final byte TCP_SYN = 1;
-    static final byte TCP_SYN_ACK = 2;
-    static final byte TCP_ESTABLISHED = 3;
-    static final byte TCP_FIRST_FIN = 4;
-    static final byte TCP_HALF_STOP = 5;
-    static final byte TCP_SECOND_FIN = 6;
-    static final byte TCP_STOP = 7;
+    @Override
+    public CompletableFuture<Integer> startServiceAsync(String service, DeviceId deviceId) {
+        return metrics.timer("startService").time(() -> doStartService(service, deviceId), SUCCEEDED);
+    }
 
-    private void startStatefulFirewallService() {
-        short targetId = (short) ((int) TARGET_ID_MAP.get("sfw"));
-        installStateTransfer(targetId, SYN, TCP_INIT, TCP_SYN);
-        installStateTransfer(targetId, SYN, TCP_SYN, TCP_SYN);
-        installStateTransfer(targetId, (byte) (SYN | ACK), TCP_SYN, TCP_SYN_ACK);
-        installStateTransfer(targetId, ACK, TCP_SYN_ACK, TCP_ESTABLISHED);
+    private CompletableFuture<Integer> doStartService(String service, DeviceId deviceId) {
+        FsmRuleTemplate template = SERVICES.get(service);
+        if (template == null || deviceId == null) {
+            return CompletableFuture.completedFuture(1);
+        }
+        List<FlowRule> rules;
+        try {
+            rules = instantiate(template, deviceId);
+        } catch (FlowRuleGeneratorException e) {
+            log.warn("Unable to start service {} on {}: {}", service, deviceId, e.getMessage());
+            return CompletableFuture.completedFuture(1);
+        }
+        DeviceState state = deviceState(deviceId);
+        int targetId = template.fsm().targetId();
+        if (state.ruleIndex.rules(service, targetId).containsAll(rules)) {
+            return CompletableFuture.completedFuture(0);
+        }
+        int[] demand = state.tables.demand(rules);
+        return admit(deviceId, state, demand, null).thenCompose(admitted -> {
+            if (!admitted) {
+                log.warn("Unable to start service {} on {}: tables full", service, deviceId);
+                return CompletableFuture.completedFuture(1);
+            }
+            state.ruleIndex.addRules(service, targetId, rules);
+            return installFlowRulesAsync(rules).thenApply(success -> {
+                if (!success) {
+                    state.ruleIndex.removeRules(service, targetId, rules);
+                    removeFlowRules(rules);
+                    state.tables.release(demand);
+                }
+                return result(success);
+            });
+        });
+    }
 
-        installStateTransfer(targetId, ACK, TCP_ESTABLISHED, TCP_ESTABLISHED);
-        installStateTransfer(targetId, RST, TCP_ESTABLISHED, TCP_ESTABLISHED);
-        installStateTransfer(targetId, (byte) (RST | ACK), TCP_ESTABLISHED, TCP_ESTABLISHED);
-        installStateTransfer(targetId, (byte) (PSH | ACK), TCP_ESTABLISHED, TCP_ESTABLISHED);
+    @Override
+    public int loadService(String path) {
+        FsmRuleTemplate template;
+        try (InputStream stream = new FileInputStream(path)) {
+            template = SERVICES.register(StatefulFsm.load(stream));
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Unable to load service from {}: {}", path, e.getMessage());
+            return 1;
+        }
+        log.info("Loaded service {} with target_id {} and {} rules", template.fsm().name(),
+                 template.fsm().targetId(), template.entries().size());
+        return 0;
+    }
 
-        installStateTransfer(targetId, FIN, TCP_ESTABLISHED, TCP_FIRST_FIN);
-        installStateTransfer(targetId, (byte) (FIN | ACK), TCP_FIRST_FIN, TCP_HALF_STOP);
+    @Override
+    public int createService(String service, String name) {
+        FsmRuleTemplate template;
+        try {
+            template = SERVICES.instantiate(service, name);
+        } catch (IllegalArgumentException e) {
+            log.warn("Unable to create service {}: {}", name, e.getMessage());
+            return 1;
+        }
+        log.info("Created service {} from {} with target_id {}", name, service, template.fsm().targetId());
+        return 0;
+    }
 
-        installStateTransfer(targetId, FIN, TCP_HALF_STOP, TCP_SECOND_FIN);
-        installStateTransfer(targetId, (byte) (FIN | ACK), TCP_SECOND_FIN, TCP_STOP);
+    @Override
+    public int removeService(String name) {
+        FsmRuleTemplate template = SERVICES.get(name);
+        if (template == null) {
+            return 1;
+        }
+        int targetId = template.fsm().targetId();
+        for (Map.Entry<DeviceId, DeviceState> entry : deviceStates.entrySet()) {
+            if (!entry.getValue().ruleIndex.rules(name, targetId).isEmpty()) {
+                log.warn("Unable to remove service {}: still running on {}", name, entry.getKey());
+                return 1;
+            }
+        }
+        SERVICES.unregister(name);
+        return 0;
+    }
 
-        TrafficTreatment treatment = DefaultTrafficTreatment.emptyTreatment();
-        installAction((byte) 0, treatment);
+    @Override
+    public Map<String, Integer> getServices() {
+        Map<String, Integer> services = Maps.newTreeMap();
+        SERVICES.services().forEach(template -> services.put(template.fsm().name(), template.fsm().targetId()));
+        return services;
     }
 
-    private void startLoadBalancingService() {
-        int targetId = TARGET_ID_MAP.get("slb");
+    @Override
+    public int stopService(String service) {
+        return await(stopServiceAsync(service, defaultDevice()));
+    }
 
-        installStateTransfer((short) targetId, (short) 0, (byte) 0, (byte) 1);
-        installStateTransfer((short) targetId, (short) 0, (byte) 1, (byte) 2);
-        installStateTransfer((short) targetId, (short) 0,  (byte) 2, (byte) 1);
+    @Override
+    public Map<DeviceId, Integer> stopService(String service, Collection<DeviceId> devices) {
+        return fanOut(devices, deviceId -> await(stopServiceAsync(service, deviceId)));
+    }
 
-        TrafficTreatment treatment
-                = DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(2)).build();
+    @Override
+    public CompletableFuture<Integer> stopServiceAsync(String service, DeviceId deviceId) {
+        return metrics.timer("stopService").time(() -> doStopService(service, deviceId), SUCCEEDED);
+    }
 
-        installAction((byte) 1, treatment);
+    private CompletableFuture<Integer> doStopService(String service, DeviceId deviceId) {
+        FsmRuleTemplate template = SERVICES.get(service);
+        if (template == null || deviceId == null) {
+            return CompletableFuture.completedFuture(1);
+        }
+        DeviceState state = deviceState(deviceId);
+        ServiceRuleIndex.Entry entry = state.ruleIndex.removeService(service, template.fsm().targetId());
+        if (entry == null) {
+            return CompletableFuture.completedFuture(0);
+        }
+        List<Binding> bindings = Lists.newArrayList();
+        for (TrafficSelector selector : entry.selectors()) {
+            Binding binding = state.bindings.get(selector);
+            if (binding != null && state.remove(binding)) {
+                synchronized (binding) {
+                    expirations.cancel(binding.expiration);
+                }
+                bindings.add(binding);
+            }
+        }
+        // Instances of the same FSM share their action_table rules, keep those still used by others.
+        Set<FlowRule> rules = Sets.difference(entry.rules(), state.ruleIndex.rules()).immutableCopy();
+        log.info("Stopping service {} on {}, removing {} rules", service, deviceId, rules.size());
+        int[] demand = state.tables.demand(rules);
+        state.tables.removing(demand);
+        return removeFlowRulesAsync(rules).thenComposeAsync(success -> {
+            state.tables.removed(demand, success);
+            // The regions go back to the other services with their cells zeroed.
+            CompletableFuture<?>[] releases = bindings.stream()
+                    .map(binding -> releaseSlots(deviceId, state, binding))
+                    .toArray(CompletableFuture[]::new);
+            return CompletableFuture.allOf(releases).thenApply(v -> {
+                state.regions.free(template.fsm().targetId());
+                return result(success);
+            });
+        }, reaper);
+    }
 
-        treatment = DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(3)).build();
-        installAction((byte) 2, treatment);
+    @Override
+    public int bindService(String service, int registerId, TrafficSelector trafficSelector, String outputPort) {
+        return await(bindServiceAsync(service, registerId, trafficSelector, outputPort, defaultDevice()));
+    }
 
-        treatment = DefaultTrafficTreatment.emptyTreatment();
-        installAction((byte) 0, treatment);
+    @Override
+    public Map<DeviceId, Integer> bindService(String service, int registerId, TrafficSelector trafficSelector,
+                                              String outputPort, Collection<DeviceId> devices) {
+        return fanOut(devices, deviceId -> await(
+                bindServiceAsync(service, registerId, trafficSelector, outputPort, deviceId)));
     }
 
     @Override
-    public int startService(String service) {
+    public CompletableFuture<Integer> bindServiceAsync(String service, int registerId,
+                                                       TrafficSelector trafficSelector, String outputPort,
+                                                       DeviceId deviceId) {
+        // Timed until the device confirms the rules of the binding.
+        return metrics.timer("bindService").time(
+                () -> doBindService(service, registerId, trafficSelector, outputPort, deviceId), SUCCEEDED);
+    }
 
-        if (defaultDeviceId == null) {
-            for (Device device:deviceService.getAvailableDevices()) {
-                defaultDeviceId = device.id();
-                break;
+    private CompletableFuture<Integer> doBindService(String service, int registerId, TrafficSelector trafficSelector,
+                                                     String outputPort, DeviceId deviceId) {
+        FsmRuleTemplate template = SERVICES.get(service);
+        if (template == null || deviceId == null) {
+            return CompletableFuture.completedFuture(1);
+        }
+        Binding binding = prepareBinding(template, deviceId, trafficSelector, registerId, outputPort);
+        if (binding == null) {
+            return CompletableFuture.completedFuture(1);
+        }
+        DeviceState state = deviceState(deviceId);
+        return admit(deviceId, state, binding.demand, binding).thenCompose(admitted -> {
+            if (!admitted) {
+                log.warn("Unable to bind service {} on {}: tables full", service, deviceId);
+                discardBinding(state, binding);
+                return CompletableFuture.completedFuture(1);
+            }
+            return installFlowRulesAsync(binding.rules).thenApply(success -> {
+                if (success) {
+                    scheduleExpiry(state, binding);
+                } else {
+                    rollbackBinding(deviceId, binding.selector);
+                }
+                return result(success);
+            });
+        });
+    }
+
+    @Override
+    public int bindServices(String service, Stream<StatefulBinding> requests) {
+        FsmRuleTemplate template = SERVICES.get(service);
+        DeviceId deviceId = defaultDevice();
+        if (template == null || deviceId == null) {
+            return -1;
+        }
+
+        DeviceState state = deviceState(deviceId);
+        AtomicInteger failed = new AtomicInteger();
+        Semaphore inFlight = new Semaphore(BULK_MAX_IN_FLIGHT);
+        List<FlowRule> batch = new ArrayList<>(BULK_BATCH_SIZE);
+
+        Iterator<StatefulBinding> iterator = requests.iterator();
+        try {
+            while (iterator.hasNext()) {
+                StatefulBinding request = iterator.next();
+                Binding binding = prepareBinding(template, deviceId, request.selector(), request.registerId(),
+                                                 request.outputPort());
+                if (binding == null) {
+                    failed.incrementAndGet();
+                    continue;
+                }
+                if (!awaitAdmission(admit(deviceId, state, binding.demand, binding))) {
+                    discardBinding(state, binding);
+                    failed.incrementAndGet();
+                    continue;
+                }
+                batch.addAll(binding.rules);
+                if (batch.size() >= BULK_BATCH_SIZE) {
+                    submitBatch(deviceId, batch, inFlight, failed);
+                    batch = new ArrayList<>(BULK_BATCH_SIZE);
+                }
+            }
+        } finally {
+            // Also when the stream fails, e.g. on a malformed line: the bindings already admitted are sent, so
+            // that none of them is left holding its slot and table entries without rules.
+            if (!batch.isEmpty()) {
+                submitBatch(deviceId, batch, inFlight, failed);
+            }
+            awaitBatches(service, inFlight);
+        }
+        return failed.get();
+    }
+
+    /**
+     * Waits for the last batches of a bulk bind to be confirmed.
+     */
+    private void awaitBatches(String service, Semaphore inFlight) {
+        try {
+            if (!inFlight.tryAcquire(BULK_MAX_IN_FLIGHT, BULK_TIMEOUT, TimeUnit.SECONDS)) {
+                log.warn("Timeout while waiting for bulk bind of service {}", service);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+    }
 
-        if (service.equals("sfw")) {
-            startStatefulFirewallService();
-        } else if (service.equals("slb")) {
-            startLoadBalancingService();
+    private void submitBatch(DeviceId deviceId, List<FlowRule> batch, Semaphore inFlight, AtomicInteger failed) {
+        // Bound the number of batches waiting for a device confirmation.
+        inFlight.acquireUninterruptibly();
+        installFlowRules(batch, new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                DeviceState state = deviceState(deviceId);
+                ops.stages().forEach(stage -> stage.forEach(op -> {
+                    Binding binding = state.bindings.get(op.rule().selector());
+                    if (binding != null) {
+                        scheduleExpiry(state, binding);
+                    }
+                }));
+                inFlight.release();
+            }
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                ops.stages().forEach(stage -> stage.forEach(op -> {
+                    if (rollbackBinding(deviceId, op.rule().selector())) {
+                        failed.incrementAndGet();
+                    }
+                }));
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * Validates a bind request, allocates its register slot and builds its rules. Returns null if the request
+     * cannot be satisfied.
+     */
+    private Binding prepareBinding(FsmRuleTemplate template, DeviceId deviceId, TrafficSelector trafficSelector,
+                                   int registerId, String outputPort) {
+        String service = template.fsm().name();
+        DeviceState state = deviceState(deviceId);
+        TrafficSelector selector = forDevice(trafficSelector, deviceId);
+        if (state.bindings.containsKey(selector)) {
+            log.warn("Selector already bound on {}, unbind it first: {}", deviceId, selector);
+            return null;
+        }
+
+        int targetId = template.fsm().targetId();
+        int quota = template.fsm().registerQuota() > 0 ? template.fsm().registerQuota() : registerQuota;
+        // Wildcard bindings get a region of their own, the data plane may use any of its slots.
+        RegisterRegions.Region region = registerId == HASHED_REGISTER
+                ? state.regions.reserveHashed(targetId, quota)
+                : state.regions.reserve(targetId, quota);
+        if (region == null) {
+            log.warn("Unable to bind service {}: no room left in {} on {} for {} slots",
+                     service, STATE_REGISTER, deviceId, quota);
+            return null;
+        }
+        if (registerId == HASHED_REGISTER) {
+            return prepareHashedBinding(template, deviceId, state, selector, region, outputPort);
+        } else if (registerId == ANY_REGISTER) {
+            registerId = state.place(region, flowHash(selector));
+            if (registerId == RegisterSlotAllocator.NONE) {
+                log.warn("Unable to bind service {}: its {} slots of {} are exhausted on {}",
+                         service, region.size(), STATE_REGISTER, deviceId);
+                return null;
+            }
+        } else if (registerId >= 0 && registerId < region.size()) {
+            registerId = state.retain(region, registerId);
         } else {
+            log.warn("Invalid register id {}, service {} has {} slots", registerId, service, region.size());
+            return null;
+        }
+
+        String actionName = template.fsm().extractor();
+        try {
+            List<FlowRule> rules = new ArrayList<>(2);
+            // Selectors matching the TCP ports go to the 5-tuple tables, looked up before the 3-tuple ones.
+            boolean connection = matchParams(selector).containsKey(FLOW_SRC_PORT);
+            rules.add(buildStateRule(deviceId, connection ? StatefulP4Interpreter.FLOW_STATE_TABLE
+                                             : StatefulP4Interpreter.STATE_TABLE,
+                                     selector, actionName, targetId, registerId));
+            if (outputPort != null) {
+                rules.add(buildForwardRule(deviceId, connection ? StatefulP4Interpreter.FLOW_FORWARD_TABLE
+                                                   : StatefulP4Interpreter.FORWARD_TABLE,
+                                           selector, outputPort));
+            }
+            Binding binding = new Binding(service, targetId, deviceId, selector, registerId, rules,
+                                          state.tables.demand(rules), null);
+            if (!state.add(binding)) {
+                state.release(registerId);
+                return null;
+            }
+            state.ruleIndex.addBinding(service, targetId, selector, rules);
+            return binding;
+        } catch (Exception e) {
+            log.warn("Unable to bind service {} on {}: {}", service, deviceId, e.toString());
+            state.release(registerId);
+            return null;
+        }
+    }
+
+    /**
+     * Builds the hash_state_table rule of a wildcard binding. The data plane spreads the flows matching it over
+     * the whole hashed region of the service, which is therefore pinned as long as the binding lasts. Exact
+     * bindings of the service keep their own region.
+     */
+    private Binding prepareHashedBinding(FsmRuleTemplate template, DeviceId deviceId, DeviceState state,
+                                         TrafficSelector selector, RegisterRegions.Region region,
+                                         String outputPort) {
+        String service = template.fsm().name();
+        String actionName = template.fsm().extractor() + StatefulP4Interpreter.BY_HASH;
+        if (STATEFUL_CONFIGURATION.action(actionName) == null) {
+            log.warn("Unable to bind service {} in hash mode: unknown action {}", service, actionName);
+            return null;
+        }
+        int targetId = template.fsm().targetId();
+        try {
+            List<FlowRule> rules = new ArrayList<>(2);
+            rules.add(buildHashedStateRule(deviceId, selector, actionName, targetId, region));
+            if (outputPort != null) {
+                rules.add(buildPrefixForwardRule(deviceId, selector, outputPort));
+            }
+            Binding binding = new Binding(service, targetId, deviceId, selector, RegisterSlotAllocator.NONE, rules,
+                                          state.tables.demand(rules), region);
+            if (!state.add(binding)) {
+                return null;
+            }
+            state.retainRegion(region);
+            state.ruleIndex.addBinding(service, targetId, selector, rules);
+            return binding;
+        } catch (Exception e) {
+            log.warn("Unable to bind service {} on {}: {}", service, deviceId, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the binding of the given selector after a failed install. Returns true if a binding was removed.
+     */
+    private boolean rollbackBinding(DeviceId deviceId, TrafficSelector trafficSelector) {
+        DeviceState state = deviceState(deviceId);
+        Binding binding = state.bindings.get(trafficSelector);
+        if (binding == null || !state.remove(binding)) {
+            return false;
+        }
+        state.ruleIndex.removeBinding(binding.service, binding.targetId, trafficSelector, binding.rules);
+        state.tables.release(binding.demand);
+        // Some rules of the binding may have been installed, and packets may have hit its slot.
+        removeFlowRulesAsync(binding.rules)
+                .thenAcceptAsync(success -> releaseSlots(deviceId, state, binding), reaper);
+        return true;
+    }
+
+    /**
+     * Forgets a binding whose rules were never sent to the device.
+     */
+    private void discardBinding(DeviceState state, Binding binding) {
+        if (state.remove(binding)) {
+            state.ruleIndex.removeBinding(binding.service, binding.targetId, binding.selector, binding.rules);
+            reaper.execute(() -> releaseSlots(binding.deviceId, state, binding));
+        }
+    }
+
+    /**
+     * Removes an installed binding from the device. Its table entries and register slots are freed once the
+     * device confirms.
+     */
+    private void removeBinding(DeviceState state, Binding binding) {
+        synchronized (binding) {
+            expirations.cancel(binding.expiration);
+        }
+        state.ruleIndex.removeBinding(binding.service, binding.targetId, binding.selector, binding.rules);
+        state.tables.removing(binding.demand);
+        removeFlowRulesAsync(binding.rules).thenAcceptAsync(success -> {
+            state.tables.removed(binding.demand, success);
+            releaseSlots(binding.deviceId, state, binding);
+        }, reaper);
+    }
+
+    /**
+     * Releases the register slots of a binding whose rules are gone from the device, zeroing the cells about to
+     * become free. All the bindings give their slots back this way, whether unbound, evicted, expired, rolled
+     * back or stopped with their service. The region of a wildcard binding is released as one unit, on the
+     * region resetter.
+     */
+    private CompletableFuture<Void> releaseSlots(DeviceId deviceId, DeviceState state, Binding binding) {
+        if (binding.region == null) {
+            state.release(binding.registerId, slot -> resetSlot(deviceId, slot));
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(
+                () -> state.releaseRegion(binding.region, region -> resetRegion(deviceId, region)), regionResetter);
+    }
+
+    /**
+     * Reserves table entries on the given device. If the request is rejected and eviction is enabled, the least
+     * valuable bindings other than the given one are removed to make room, and the request is queued until
+     * their removal is confirmed.
+     */
+    private CompletableFuture<Boolean> admit(DeviceId deviceId, DeviceState state, int[] demand, Binding binding) {
+        CompletableFuture<Boolean> reservation = state.tables.reserve(demand);
+        if (isRejected(reservation) && evictStateEntries && evict(deviceId, state, demand, binding)) {
+            reservation = state.tables.reserve(demand);
+        }
+        if (!reservation.isDone()) {
+            log.debug("Request queued on {} until pending removals complete", deviceId);
+        }
+        return reservation;
+    }
+
+    private static boolean isRejected(CompletableFuture<Boolean> reservation) {
+        return reservation.isDone() && !reservation.join();
+    }
+
+    private boolean awaitAdmission(CompletableFuture<Boolean> reservation) {
+        try {
+            return reservation.get(OPERATION_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.debug("Admission failed: {}", e.toString());
+        }
+        reservation.cancel(false);
+        return false;
+    }
+
+    /**
+     * Removes enough bindings to fit the given demand in the tables of single flows, see {@link #EVICTABLE_TABLES}.
+     * Flows still in their initial state go first, then the oldest ones. Returns false if eviction cannot satisfy
+     * the demand.
+     */
+    private boolean evict(DeviceId deviceId, DeviceState state, int[] demand, Binding exclude) {
+        int needed = 0;
+        Set<Integer> shortTables = Sets.newHashSet();
+        for (Map.Entry<Integer, String> table : STATEFUL_INTERPRETER.tableIdMap().entrySet()) {
+            int shortfall = state.tables.shortfall(demand, table.getValue());
+            if (shortfall == 0) {
+                continue;
+            }
+            if (!EVICTABLE_TABLES.contains(table.getValue())) {
+                return false;
+            }
+            needed = Math.max(needed, shortfall);
+            shortTables.add(table.getKey());
+        }
+        if (needed == 0 || needed > state.bindings.size()) {
+            return false;
+        }
+        byte[] snapshot = stateMonitor.snapshot(deviceId);
+        Comparator<Binding> value = Comparator
+                .comparingInt((Binding b) -> snapshot == null ? 0 : (snapshot[b.registerId] == 0 ? 0 : 1))
+                .thenComparingLong(b -> b.created);
+        List<Binding> victims = Lists.newArrayList();
+        state.bindings.values().stream()
+                .filter(b -> b != exclude && b.region == null)
+                .filter(b -> shortTables.stream().anyMatch(id -> id < b.demand.length && b.demand[id] > 0))
+                .sorted(value)
+                .limit(needed)
+                .forEach(victims::add);
+        if (victims.size() < needed) {
+            return false;
+        }
+        for (Binding victim : victims) {
+            if (state.remove(victim)) {
+                removeBinding(state, victim);
+            }
+        }
+        log.info("Evicted {} bindings from {}", victims.size(), deviceId);
+        return true;
+    }
+
+    @Override
+    public int bindPrefix(String service, PrefixBinding binding) {
+        DeviceId deviceId = defaultDevice();
+        if (deviceId == null) {
             return 1;
         }
-        return 0;
+        if (binding.isExact()) {
+            return await(bindServiceAsync(service, ANY_REGISTER, buildFlowSelector(binding, deviceId),
+                                          binding.outputPort(), deviceId));
+        }
+        return await(bindServiceAsync(service, HASHED_REGISTER, buildWildcardSelector(binding, deviceId),
+                                      binding.outputPort(), deviceId));
     }
 
     @Override
-    public int stopService(String service) {
-        return 0;
+    public int unbindPrefix(String service, PrefixBinding binding) {
+        DeviceId deviceId = defaultDevice();
+        if (deviceId == null) {
+            return 1;
+        }
+        return unbindService(service, binding.isExact() ? buildFlowSelector(binding, deviceId)
+                : buildWildcardSelector(binding, deviceId));
     }
 
     @Override
-    public int bindService(String service, int registerId, TrafficSelector trafficSelector, String outputPort) {
-        int targetId = TARGET_ID_MAP.get(service);
-        String actionName = ACTION_MAP.get(service);
-        try {
-            installState(trafficSelector, actionName, targetId, registerId);
-            if (outputPort != null) {
-                installForward(trafficSelector, outputPort);
+    public int bindAggregated(String service, Collection<PrefixBinding> bindings) {
+        DeviceId deviceId = defaultDevice();
+        if (SERVICES.get(service) == null || deviceId == null) {
+            return -1;
+        }
+        List<PrefixBinding> aggregated = PrefixAggregator.aggregate(bindings);
+        List<StatefulBinding> flows = Lists.newArrayList();
+        int failed = 0;
+        for (PrefixBinding binding : aggregated) {
+            if (binding.isExact()) {
+                flows.add(new StatefulBinding(buildFlowSelector(binding, deviceId), ANY_REGISTER,
+                                              binding.outputPort()));
+            } else if (bindPrefix(service, binding) != 0) {
+                failed++;
             }
+        }
+        log.info("Bound {} bindings of service {} as {} prefixes and {} flows", bindings.size(), service,
+                 aggregated.size() - flows.size(), flows.size());
+        return failed + (flows.isEmpty() ? 0 : bindServices(service, flows.stream()));
+    }
 
-        } catch (Exception e) {
+    @Override
+    public int unbindService(String service, TrafficSelector trafficSelector) {
+        DeviceId deviceId = defaultDevice();
+        if (deviceId == null) {
             return 1;
         }
+        DeviceState state = deviceState(deviceId);
+        TrafficSelector selector = forDevice(trafficSelector, deviceId);
+        Binding binding = state.bindings.get(selector);
+        if (binding == null || !binding.service.equals(service) || !state.remove(binding)) {
+            return 1;
+        }
+        removeBinding(state, binding);
         return 0;
     }
+
+    /**
+     * Returns when the given binding expires, or -1 if it never does. A binding expires after idleTimeout
+     * without any change of its register slot nor hit of its state entry, or closeTimeout after its flow reached
+     * a closed state. Wildcard bindings never expire.
+     */
+    private long deadline(DeviceState state, Binding binding) {
+        if (binding.region != null) {
+            // Wildcard bindings stand for any number of flows.
+            return -1;
+        }
+        long lastActivity = Math.max(Math.max(binding.created, binding.lastHit),
+                                     state.slotActivity.get(binding.registerId));
+        FsmRuleTemplate template = SERVICES.get(binding.service);
+        boolean closed = template != null &&
+                template.fsm().closedStates().contains((byte) state.slotStates.get(binding.registerId));
+        int timeout = closed ? closeTimeout : idleTimeout;
+        return timeout > 0 ? lastActivity + TimeUnit.SECONDS.toMillis(timeout) : -1;
+    }
+
+    private void scheduleExpiry(DeviceState state, Binding binding) {
+        long deadline = deadline(state, binding);
+        synchronized (binding) {
+            expirations.cancel(binding.expiration);
+            binding.expiration = deadline < 0 ? null : expirations.schedule(binding, deadline);
+        }
+    }
+
+    private void onStateChange(StateDelta delta) {
+        DeviceState state = deviceStates.get(delta.deviceId());
+        if (state == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < delta.size(); i++) {
+            int slot = delta.index(i);
+            state.slotActivity.set(slot, now);
+            state.slotStates.set(slot, delta.current(i) & 0xff);
+            for (Binding binding : state.slotBindings.getOrDefault(slot, Collections.emptySet())) {
+                scheduleExpiry(state, binding);
+            }
+        }
+    }
+
+    /**
+     * Removes the expired bindings, in one batch per device, then resets and frees their register slots.
+     */
+    private void reap() {
+        long now = System.currentTimeMillis();
+        Map<DeviceId, List<Binding>> due = Maps.newHashMap();
+        for (Binding binding : expirations.advance(now)) {
+            DeviceState state = deviceStates.get(binding.deviceId);
+            if (state != null && state.bindings.get(binding.selector) == binding) {
+                due.computeIfAbsent(binding.deviceId, k -> Lists.newArrayList()).add(binding);
+            }
+        }
+        Map<DeviceId, List<Binding>> expired = Maps.newHashMap();
+        due.forEach((deviceId, bindings) -> {
+            DeviceState state = deviceStates.get(deviceId);
+            updateHits(deviceId, bindings, now);
+            for (Binding binding : bindings) {
+                long deadline = deadline(state, binding);
+                if (deadline < 0) {
+                    continue;
+                } else if (deadline > now) {
+                    // Activity raced with the expiry, or the flow still hits its state entry.
+                    scheduleExpiry(state, binding);
+                } else if (state.remove(binding)) {
+                    expired.computeIfAbsent(deviceId, k -> Lists.newArrayList()).add(binding);
+                }
+            }
+        });
+        expired.forEach(this::reclaim);
+    }
+
+    /**
+     * Records a hit on the given bindings whose state entry counted packets since the last check. A connection
+     * staying in the same state, e.g. ESTABLISHED, never changes its register slot but keeps hitting its entry.
+     */
+    private void updateHits(DeviceId deviceId, List<Binding> bindings, long now) {
+        Map<FlowId, Binding> byStateRule = Maps.newHashMap();
+        bindings.forEach(binding -> byStateRule.put(binding.rules.get(0).id(), binding));
+        for (FlowEntry entry : getFlowEntries(deviceId)) {
+            Binding binding = byStateRule.get(entry.id());
+            if (binding != null && entry.packets() > binding.packets) {
+                binding.packets = entry.packets();
+                binding.lastHit = now;
+            }
+        }
+    }
+
+    private void reclaim(DeviceId deviceId, List<Binding> bindings) {
+        DeviceState state = deviceState(deviceId);
+        List<FlowRule> rules = Lists.newArrayList();
+        for (Binding binding : bindings) {
+            state.ruleIndex.removeBinding(binding.service, binding.targetId, binding.selector, binding.rules);
+            rules.addAll(binding.rules);
+        }
+        int[] demand = state.tables.demand(rules);
+        state.tables.removing(demand);
+        log.info("Reclaiming {} idle or closed bindings on {}", bindings.size(), deviceId);
+        removeFlowRulesAsync(rules).thenAcceptAsync(success -> {
+            state.tables.removed(demand, success);
+            for (Binding binding : bindings) {
+                releaseSlots(deviceId, state, binding);
+            }
+        }, reaper);
+    }
+
+    private void resetSlot(DeviceId deviceId, int slot) {
+        try {
+            registerAccess.write(deviceId, STATE_REGISTER, slot, 0);
+        } catch (Bmv2RuntimeException e) {
+            log.warn("Unable to reset {}[{}] on {}: {}", STATE_REGISTER, slot, deviceId, e.toString());
+        }
+    }
+
+    private void resetRegion(DeviceId deviceId, RegisterRegions.Region region) {
+        try {
+            registerAccess.reset(deviceId, STATE_REGISTER, region.base(), region.size());
+        } catch (Bmv2RuntimeException e) {
+            log.warn("Unable to reset {}[{}..{}] on {}: {}", STATE_REGISTER, region.base(),
+                     region.base() + region.size() - 1, deviceId, e.toString());
+        }
+    }
+
+    private synchronized void scheduleStatePoll() {
+        if (statePollTask != null) {
+            statePollTask.cancel(false);
+            statePollTask = null;
+        }
+        if (statePollInterval > 0 && !statePoller.isShutdown()) {
+            statePollTask = statePoller.scheduleWithFixedDelay(this::pollStates, statePollInterval,
+                                                               statePollInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void pollStates() {
+        deviceStates.forEach((deviceId, state) -> {
+            if (state.bindings.isEmpty()) {
+                return;
+            }
+            try {
+                stateMonitor.poll(deviceId, state::slotOwner);
+            } catch (Bmv2RuntimeException | RuntimeException e) {
+                log.debug("Unable to read {} of {}: {}", STATE_REGISTER, deviceId, e.toString());
+            }
+        });
+    }
+
+    private synchronized void schedulePortPoll() {
+        if (portPollTask != null) {
+            portPollTask.cancel(false);
+            portPollTask = null;
+        }
+        if (portPollInterval > 0 && !portPoller.isShutdown()) {
+            portPollTask = portPoller.scheduleWithFixedDelay(this::pollPorts, portPollInterval, portPollInterval,
+                                                             TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void pollPorts() {
+        for (Device device : deviceService.getAvailableDevices()) {
+            try {
+                portMonitor.poll(device.id());
+            } catch (Bmv2RuntimeException | RuntimeException e) {
+                log.debug("Unable to read port counters of {}: {}", device.id(), e.toString());
+            }
+        }
+    }
+
+    private synchronized void scheduleReconcile() {
+        if (reconcileTask != null) {
+            reconcileTask.cancel(false);
+            reconcileTask = null;
+        }
+        if (reconcileInterval > 0 && !auditor.isShutdown()) {
+            reconcileTask = auditor.scheduleWithFixedDelay(this::reconcile, reconcileInterval, reconcileInterval,
+                                                           TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Audits the tables of each device against the stateful and fabric rules of this app, and repairs confirmed
+     * differences: missing rules are installed again, stale rules of this app are removed through the flow rule
+     * service, and entries no rule accounts for are deleted from the device. Rules of other apps are left alone.
+     */
+    private void reconcile() {
+        deviceStates.forEach((deviceId, state) -> {
+            if (!deviceService.isAvailable(deviceId)) {
+                tableReconciler.forget(deviceId);
+                return;
+            }
+            try {
+                Set<FlowRule> desired = Sets.newHashSet(state.ruleIndex.rules());
+                desired.addAll(getDeviceFlowRules(deviceId));
+                List<FlowRule> known = Lists.newArrayList();
+                for (FlowEntry entry : getFlowEntries(deviceId)) {
+                    if (!desired.contains(entry)) {
+                        known.add(entry);
+                    }
+                }
+                TableReconciler.Delta delta = tableReconciler.audit(deviceId, desired, known);
+                List<FlowRule> stale = delta.stale().stream()
+                        .filter(rule -> rule.appId() == getAppId().id())
+                        .collect(Collectors.toList());
+                if (delta.missing().isEmpty() && stale.isEmpty() && delta.orphans().isEmpty()) {
+                    return;
+                }
+                log.warn("Tables of {} diverged, reinstalling {} rules, removing {} stale rules and deleting {} " +
+                                 "orphan entries", deviceId, delta.missing().size(), stale.size(),
+                         delta.orphans().size());
+                if (!delta.missing().isEmpty()) {
+                    installFlowRules(delta.missing());
+                }
+                if (!stale.isEmpty()) {
+                    removeFlowRules(stale);
+                }
+                for (Map.Entry<String, Long> entry : delta.orphans().entries()) {
+                    tableAccess.delete(deviceId, entry.getKey(), entry.getValue());
+                }
+            } catch (Bmv2RuntimeException | RuntimeException e) {
+                log.debug("Unable to reconcile the tables of {}: {}", deviceId, e.toString());
+            }
+        });
+    }
+
+    @Override
+    public List<PortLoad> getPortLoad(DeviceId deviceId) {
+        return portMonitor.load(deviceId);
+    }
+
+    @Override
+    public byte[] getStateSnapshot(DeviceId deviceId) {
+        return stateMonitor.snapshot(deviceId);
+    }
+
+    @Override
+    public Map<String, Long> getStateHistogram(String service, DeviceId deviceId) {
+        FsmRuleTemplate template = SERVICES.get(service);
+        if (template == null) {
+            return Collections.emptyMap();
+        }
+        long[] histogram = stateMonitor.histogram(deviceId, template.fsm().targetId());
+        Map<String, Long> result = Maps.newLinkedHashMap();
+        template.fsm().states().forEach((name, value) -> result.put(name, histogram[value & 0xff]));
+        return result;
+    }
+
+    @Override
+    public void addStateListener(StateListener listener) {
+        stateMonitor.addListener(listener);
+    }
+
+    @Override
+    public void removeStateListener(StateListener listener) {
+        stateMonitor.removeListener(listener);
+    }
+
+    /**
+     * Stateful service state of a device. Slots are placed, retained and released under the lock of their region,
+     * so that the owner of a slot is set before it can be handed out again, and a slot is reset only while no
+     * other binding can take it.
+     */
+    private static final class DeviceState {
+        private static final IntConsumer NO_RESET = slot -> { };
+
+        private final RegisterRegions regions =
+                new RegisterRegions(RegisterSlotAllocator.registerSize(STATEFUL_CONFIGURATION, STATE_REGISTER));
+        // target_id owning each register slot, -1 if free
+        private final AtomicIntegerArray slotOwners = new AtomicIntegerArray(regions.size());
+        // time of the last change and latest known value of each register slot
+        private final AtomicLongArray slotActivity = new AtomicLongArray(regions.size());
+        private final AtomicIntegerArray slotStates = new AtomicIntegerArray(regions.size());
+        private final ConcurrentMap<TrafficSelector, Binding> bindings = Maps.newConcurrentMap();
+        private final ConcurrentMap<Integer, Set<Binding>> slotBindings = Maps.newConcurrentMap();
+        private final ServiceRuleIndex ruleIndex = new ServiceRuleIndex();
+        private final TableOccupancy tables =
+                new TableOccupancy(STATEFUL_CONFIGURATION, STATEFUL_INTERPRETER.tableIdMap());
+
+        private DeviceState() {
+            for (int i = 0; i < slotOwners.length(); i++) {
+                slotOwners.set(i, -1);
+            }
+        }
+
+        private int place(RegisterRegions.Region region, long flowHash) {
+            synchronized (region) {
+                int slot = region.place(flowHash);
+                if (slot != RegisterSlotAllocator.NONE) {
+                    slotOwners.set(slot, region.targetId());
+                }
+                return slot;
+            }
+        }
+
+        private int retain(RegisterRegions.Region region, int offset) {
+            synchronized (region) {
+                int slot = region.retain(offset);
+                slotOwners.set(slot, region.targetId());
+                return slot;
+            }
+        }
+
+        private void retainRegion(RegisterRegions.Region region) {
+            synchronized (region) {
+                if (region.pin()) {
+                    for (int slot = region.base(); slot < region.base() + region.size(); slot++) {
+                        slotOwners.set(slot, region.targetId());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Releases the region of a wildcard binding as one unit. The last binding passes the region to the given
+         * reset first, so that the next flows hashed there do not start in the states left by its flows. Returns
+         * true if the region is now free.
+         */
+        private boolean releaseRegion(RegisterRegions.Region region, Consumer<RegisterRegions.Region> reset) {
+            synchronized (region) {
+                if (region.pins() == 1) {
+                    reset.accept(region);
+                }
+                if (!region.unpin()) {
+                    return false;
+                }
+                for (int slot = region.base(); slot < region.base() + region.size(); slot++) {
+                    slotOwners.set(slot, -1);
+                    slotStates.set(slot, 0);
+                }
+                return true;
+            }
+        }
+
+        /**
+         * Undoes the allocation of a slot no rule has referenced yet, hence still zeroed.
+         */
+        private boolean release(int slot) {
+            return release(slot, NO_RESET);
+        }
+
+        /**
+         * Releases a reference to the given slot. The slot is passed to the given reset first if it is about to
+         * become free, so that the next flow placed there does not start in the state left by this one. Returns
+         * true if the slot is now free.
+         */
+        private boolean release(int slot, IntConsumer reset) {
+            int owner = slotOwners.get(slot);
+            RegisterRegions.Region region = owner < 0 ? null : regions.region(owner, slot);
+            if (region == null) {
+                return false;
+            }
+            synchronized (region) {
+                if (region.references(slot) == 1) {
+                    reset.accept(slot);
+                }
+                if (region.release(slot)) {
+                    slotOwners.set(slot, -1);
+                    slotStates.set(slot, 0);
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        private boolean add(Binding binding) {
+            if (bindings.putIfAbsent(binding.selector, binding) != null) {
+                return false;
+            }
+            if (binding.region == null) {
+                slotBindings.computeIfAbsent(binding.registerId, k -> ConcurrentHashMap.newKeySet()).add(binding);
+            }
+            return true;
+        }
+
+        private boolean remove(Binding binding) {
+            if (!bindings.remove(binding.selector, binding)) {
+                return false;
+            }
+            slotBindings.computeIfPresent(binding.registerId, (k, set) -> {
+                set.remove(binding);
+                return set.isEmpty() ? null : set;
+            });
+            return true;
+        }
+
+        private int slotOwner(int slot) {
+            return slotOwners.get(slot);
+        }
+    }
+
+    /**
+     * A selector bound to a service.
+     */
+    private static final class Binding {
+        private final String service;
+        private final int targetId;
+        private final DeviceId deviceId;
+        private final TrafficSelector selector;
+        private final int registerId;
+        private final List<FlowRule> rules;
+        // table entries used by the rules, indexed by table id
+        private final int[] demand;
+        // region spread over by a wildcard binding, null for single flows
+        private final RegisterRegions.Region region;
+        private final long created = System.currentTimeMillis();
+        // packets counted by the direct counter of the state entry, and when that count last grew
+        private volatile long packets;
+        private volatile long lastHit;
+        private TimingWheel.Timeout<Binding> expiration;
+
+        private Binding(String service, int targetId, DeviceId deviceId, TrafficSelector selector, int registerId,
+                        List<FlowRule> rules, int[] demand, RegisterRegions.Region region) {
+            this.service = service;
+            this.targetId = targetId;
+            this.deviceId = deviceId;
+            this.selector = selector;
+            this.registerId = registerId;
+            this.rules = rules;
+            this.demand = demand;
+            this.region = region;
+        }
+    }
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.onosproject.bmv2.api.runtime.Bmv2DeviceAgent;
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.bmv2.api.service.Bmv2Controller;
+import org.onosproject.net.DeviceId;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Counter access backed by the BMv2 device agents.
+ */
+public final class Bmv2CounterAccess implements CounterAccess {
+
+    private final Bmv2Controller controller;
+
+    public Bmv2CounterAccess(Bmv2Controller controller) {
+        this.controller = checkNotNull(controller);
+    }
+
+    @Override
+    public void read(DeviceId deviceId, String counterName, int offset, int length, long[] packets, long[] bytes)
+            throws Bmv2RuntimeException {
+        Bmv2DeviceAgent agent = controller.getAgent(deviceId);
+        for (int i = offset; i < offset + length; i++) {
+            Pair<Long, Long> value = agent.readCounter(counterName, i);
+            packets[i] = value.getLeft();
+            bytes[i] = value.getRight();
+        }
+    }
+}
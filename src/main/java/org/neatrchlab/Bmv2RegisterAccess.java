@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import org.onosproject.bmv2.api.runtime.Bmv2DeviceAgent;
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.bmv2.api.service.Bmv2Controller;
+import org.onosproject.net.DeviceId;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Register access backed by the BMv2 device agents. The agent API exposes single-cell reads and writes only, a
+ * range is read or reset over the same agent connection.
+ */
+public final class Bmv2RegisterAccess implements RegisterAccess {
+
+    private final Bmv2Controller controller;
+
+    public Bmv2RegisterAccess(Bmv2Controller controller) {
+        this.controller = checkNotNull(controller);
+    }
+
+    @Override
+    public long[] read(DeviceId deviceId, String registerName, int offset, int length)
+            throws Bmv2RuntimeException {
+        Bmv2DeviceAgent agent = controller.getAgent(deviceId);
+        long[] values = new long[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = agent.readRegister(registerName, offset + i);
+        }
+        return values;
+    }
+
+    @Override
+    public void write(DeviceId deviceId, String registerName, int index, long value)
+            throws Bmv2RuntimeException {
+        controller.getAgent(deviceId).writeRegister(registerName, index, value);
+    }
+
+    @Override
+    public void reset(DeviceId deviceId, String registerName, int offset, int length)
+            throws Bmv2RuntimeException {
+        Bmv2DeviceAgent agent = controller.getAgent(deviceId);
+        for (int i = 0; i < length; i++) {
+            agent.writeRegister(registerName, offset + i, 0);
+        }
+    }
+}
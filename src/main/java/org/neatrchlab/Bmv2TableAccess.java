@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import org.onosproject.bmv2.api.runtime.Bmv2ParsedTableEntry;
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.bmv2.api.service.Bmv2Controller;
+import org.onosproject.net.DeviceId;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Table access backed by the BMv2 device agents.
+ */
+public final class Bmv2TableAccess implements TableAccess {
+
+    private final Bmv2Controller controller;
+
+    public Bmv2TableAccess(Bmv2Controller controller) {
+        this.controller = checkNotNull(controller);
+    }
+
+    @Override
+    public List<Bmv2ParsedTableEntry> entries(DeviceId deviceId, String tableName) throws Bmv2RuntimeException {
+        return controller.getAgent(deviceId).getTableEntries(tableName);
+    }
+
+    @Override
+    public void delete(DeviceId deviceId, String tableName, long entryId) throws Bmv2RuntimeException {
+        controller.getAgent(deviceId).deleteTableEntry(tableName, entryId);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.net.DeviceId;
+
+/**
+ * Access to the counter arrays of BMv2 devices.
+ */
+public interface CounterAccess {
+
+    /**
+     * Reads a range of cells of the given counter array into the given arrays, at the same indices.
+     *
+     * @param deviceId    a device id
+     * @param counterName a counter array name
+     * @param offset      index of the first cell
+     * @param length      number of cells
+     * @param packets     array receiving the packet counts
+     * @param bytes       array receiving the byte counts
+     * @throws Bmv2RuntimeException if the device cannot be read
+     */
+    void read(DeviceId deviceId, String counterName, int offset, int length, long[] packets, long[] bytes)
+            throws Bmv2RuntimeException;
+}
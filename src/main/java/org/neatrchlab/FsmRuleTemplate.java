@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.google.common.collect.ImmutableList;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionSelector;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionTreatment;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Immutable set of state_transfer_table and action_table rules compiled from a {@link StatefulFsm}.
+ * <p>
+ * BMv2 extension selectors and treatments are built once at compile time and shared by all devices; only the
+ * device-bound selector/treatment wrappers are created when the template is instantiated for a device.
+ */
+public final class FsmRuleTemplate {
+
+    private final StatefulFsm fsm;
+    private final ImmutableList<Entry> entries;
+
+    private FsmRuleTemplate(StatefulFsm fsm, ImmutableList<Entry> entries) {
+        this.fsm = fsm;
+        this.entries = entries;
+    }
+
+    /**
+     * Compiles the given FSM against the given configuration.
+     *
+     * @param fsm           a FSM definition
+     * @param configuration a BMv2 configuration
+     * @return a rule template
+     * @throws IllegalArgumentException if the FSM does not fit the configuration
+     */
+    public static FsmRuleTemplate compile(StatefulFsm fsm, Bmv2Configuration configuration) {
+        checkNotNull(fsm);
+        checkNotNull(configuration);
+        if (configuration.action(fsm.extractor()) == null) {
+            throw new IllegalArgumentException("Unknown extractor action " + fsm.extractor());
+        }
+
+        ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+        short targetId = (short) fsm.targetId();
+
+        for (StatefulFsm.Transition transition : fsm.transitions()) {
+            Bmv2ExtensionSelector selector = Bmv2ExtensionSelector.builder()
+                    .forConfiguration(configuration)
+                    .matchExact(StatefulP4Interpreter.STATE_METADATA, StatefulP4Interpreter.TARGET_ID, targetId)
+                    .matchExact(StatefulP4Interpreter.STATE_METADATA, StatefulP4Interpreter.CUR_STATE,
+                                transition.curState())
+                    .matchExact(StatefulP4Interpreter.STATE_METADATA, StatefulP4Interpreter.TRIGGER,
+                                transition.trigger())
+                    .build();
+            Bmv2ExtensionTreatment treatment = Bmv2ExtensionTreatment.builder()
+                    .forConfiguration(configuration)
+                    .setActionName(StatefulP4Interpreter.STATE_TRANSFER)
+                    .addParameter(StatefulP4Interpreter.NEXT_STATE, transition.nextState())
+                    .build();
+            entries.add(new Entry(StatefulP4Interpreter.STATE_TRANSFER_TABLE, selector, treatment, null));
+        }
+
+        for (StatefulFsm.StateAction action : fsm.actions()) {
+            Bmv2ExtensionSelector selector = Bmv2ExtensionSelector.builder()
+                    .forConfiguration(configuration)
+                    .matchExact(StatefulP4Interpreter.STATE_METADATA, StatefulP4Interpreter.NEXT_STATE,
+                                action.state())
+                    .build();
+            TrafficTreatment treatment = action.outputPort() == null
+                    ? DefaultTrafficTreatment.emptyTreatment()
+                    : DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(action.outputPort())).build();
+            entries.add(new Entry(StatefulP4Interpreter.ACTION_TABLE, selector, null, treatment));
+        }
+
+        return new FsmRuleTemplate(fsm, entries.build());
+    }
+
+    /**
+     * Returns the FSM this template was compiled from.
+     *
+     * @return a FSM definition
+     */
+    public StatefulFsm fsm() {
+        return fsm;
+    }
+
+    /**
+     * Returns the rule entries of this template.
+     *
+     * @return a list of entries
+     */
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * A single rule of a template.
+     */
+    public static final class Entry {
+        private final String tableName;
+        private final Bmv2ExtensionSelector selector;
+        private final Bmv2ExtensionTreatment extensionTreatment;
+        private final TrafficTreatment treatment;
+
+        private Entry(String tableName, Bmv2ExtensionSelector selector,
+                      Bmv2ExtensionTreatment extensionTreatment, TrafficTreatment treatment) {
+            this.tableName = tableName;
+            this.selector = selector;
+            this.extensionTreatment = extensionTreatment;
+            this.treatment = treatment;
+        }
+
+        public String tableName() {
+            return tableName;
+        }
+
+        /**
+         * Returns a traffic selector for the given device.
+         *
+         * @param deviceId a device id
+         * @return a traffic selector
+         */
+        public TrafficSelector selector(DeviceId deviceId) {
+            return DefaultTrafficSelector.builder().extension(selector, deviceId).build();
+        }
+
+        /**
+         * Returns a traffic treatment for the given device.
+         *
+         * @param deviceId a device id
+         * @return a traffic treatment
+         */
+        public TrafficTreatment treatment(DeviceId deviceId) {
+            if (extensionTreatment == null) {
+                return treatment;
+            }
+            return DefaultTrafficTreatment.builder().extension(extensionTreatment, deviceId).build();
+        }
+    }
+}
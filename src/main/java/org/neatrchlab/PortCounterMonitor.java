@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.neatrchlab.service.PortLoad;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.net.DeviceId;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Periodic reader of the per-port counter arrays of BMv2 devices.
+ * <p>
+ * Each poll reads every counter array in chunks, in parallel, and appends one sample per port to a
+ * {@link PortTimeSeries}. Series are created the first time a port shows some traffic.
+ */
+public final class PortCounterMonitor {
+
+    private static final int CHUNK_SIZE = 64;
+
+    private final CounterAccess access;
+    private final Map<String, Integer> counters;
+    private final int samples;
+    private final ExecutorService readers;
+
+    // device -> counter name -> series indexed by port, null until the port shows some traffic
+    private final ConcurrentMap<DeviceId, Map<String, PortTimeSeries[]>> series = Maps.newConcurrentMap();
+
+    /**
+     * Creates a new monitor.
+     *
+     * @param access   counter access
+     * @param counters names and sizes of the counter arrays to read
+     * @param samples  number of samples kept per port
+     * @param readers  executor used to read chunks in parallel
+     */
+    public PortCounterMonitor(CounterAccess access, Map<String, Integer> counters, int samples,
+                              ExecutorService readers) {
+        this.access = checkNotNull(access);
+        this.counters = checkNotNull(counters);
+        this.samples = samples;
+        this.readers = checkNotNull(readers);
+    }
+
+    /**
+     * Returns the size of the given counter array as declared in the given configuration.
+     *
+     * @param config a BMv2 configuration
+     * @param name   a counter array name
+     * @return number of cells
+     * @throws IllegalArgumentException if the configuration has no such counter array
+     */
+    public static int counterSize(Bmv2Configuration config, String name) {
+        for (JsonValue value : config.json().get("counter_arrays").asArray()) {
+            JsonObject counter = value.asObject();
+            if (name.equals(counter.getString("name", null))) {
+                return counter.getInt("size", 0);
+            }
+        }
+        throw new IllegalArgumentException("No such counter array: " + name);
+    }
+
+    /**
+     * Reads all the counter arrays of the given device and appends a sample to each port series.
+     *
+     * @param deviceId a device id
+     * @return true if the poll completed, false if it was interrupted
+     * @throws Bmv2RuntimeException if the device cannot be read
+     */
+    public boolean poll(DeviceId deviceId) throws Bmv2RuntimeException {
+        Map<String, PortTimeSeries[]> deviceSeries = series.computeIfAbsent(deviceId, k -> Maps.newConcurrentMap());
+        for (Map.Entry<String, Integer> counter : counters.entrySet()) {
+            int size = counter.getValue();
+            long[] packets = new long[size];
+            long[] bytes = new long[size];
+            if (!readAll(deviceId, counter.getKey(), packets, bytes)) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            PortTimeSeries[] ports = deviceSeries.computeIfAbsent(counter.getKey(), k -> new PortTimeSeries[size]);
+            for (int port = 0; port < size; port++) {
+                if (ports[port] == null) {
+                    if (packets[port] == 0) {
+                        continue;
+                    }
+                    ports[port] = new PortTimeSeries(samples);
+                }
+                ports[port].add(now, packets[port], bytes[port]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the load of every port of the given device that showed some traffic.
+     *
+     * @param deviceId a device id
+     * @return a list of port loads, empty if the device has never been polled
+     */
+    public List<PortLoad> load(DeviceId deviceId) {
+        Map<String, PortTimeSeries[]> deviceSeries = series.get(deviceId);
+        if (deviceSeries == null) {
+            return ImmutableList.of();
+        }
+        List<PortLoad> result = Lists.newArrayList();
+        deviceSeries.forEach((counter, ports) -> {
+            for (int port = 0; port < ports.length; port++) {
+                PortTimeSeries s = ports[port];
+                if (s != null) {
+                    result.add(new PortLoad(counter, port, s.packetRate(), s.byteRate(),
+                                            s.packetRatePercentile(50), s.packetRatePercentile(95),
+                                            s.packetRatePercentile(99)));
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Forgets everything known about the given device.
+     *
+     * @param deviceId a device id
+     */
+    public void forget(DeviceId deviceId) {
+        series.remove(deviceId);
+    }
+
+    private boolean readAll(DeviceId deviceId, String counterName, long[] packets, long[] bytes)
+            throws Bmv2RuntimeException {
+        List<Future<?>> chunks = Lists.newArrayList();
+        for (int offset = 0; offset < packets.length; offset += CHUNK_SIZE) {
+            int chunkOffset = offset;
+            int chunkLength = Math.min(CHUNK_SIZE, packets.length - offset);
+            // Chunks write disjoint ranges of the same arrays.
+            chunks.add(readers.submit(() -> {
+                access.read(deviceId, counterName, chunkOffset, chunkLength, packets, bytes);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> chunk : chunks) {
+                chunk.get();
+            }
+        } catch (InterruptedException e) {
+            chunks.forEach(chunk -> chunk.cancel(true));
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            chunks.forEach(chunk -> chunk.cancel(true));
+            if (e.getCause() instanceof Bmv2RuntimeException) {
+                throw (Bmv2RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Fixed-size ring buffer of counter samples of a port, backed by primitive arrays.
+ */
+public final class PortTimeSeries {
+
+    private final long[] timestamps;
+    private final long[] packets;
+    private final long[] bytes;
+    private int next;
+    private int count;
+
+    /**
+     * Creates a new time series keeping the given number of samples.
+     *
+     * @param capacity number of samples, at least 2
+     */
+    public PortTimeSeries(int capacity) {
+        checkArgument(capacity >= 2, "capacity must be at least 2");
+        this.timestamps = new long[capacity];
+        this.packets = new long[capacity];
+        this.bytes = new long[capacity];
+    }
+
+    /**
+     * Adds a sample, overwriting the oldest one if the buffer is full.
+     *
+     * @param timestamp sample time in milliseconds
+     * @param packetCount packet counter value
+     * @param byteCount   byte counter value
+     */
+    public synchronized void add(long timestamp, long packetCount, long byteCount) {
+        timestamps[next] = timestamp;
+        packets[next] = packetCount;
+        bytes[next] = byteCount;
+        next = (next + 1) % timestamps.length;
+        count = Math.min(count + 1, timestamps.length);
+    }
+
+    /**
+     * Returns the number of samples held.
+     *
+     * @return an integer
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Returns the packet rate between the two latest samples.
+     *
+     * @return packets per second
+     */
+    public synchronized double packetRate() {
+        return count < 2 ? 0 : rate(packets, count - 1);
+    }
+
+    /**
+     * Returns the byte rate between the two latest samples.
+     *
+     * @return bytes per second
+     */
+    public synchronized double byteRate() {
+        return count < 2 ? 0 : rate(bytes, count - 1);
+    }
+
+    /**
+     * Returns the given percentile of the packet rates over the samples held.
+     *
+     * @param percentile a value in [0, 100]
+     * @return packets per second
+     */
+    public synchronized double packetRatePercentile(double percentile) {
+        return percentile(packets, percentile);
+    }
+
+    /**
+     * Returns the given percentile of the byte rates over the samples held.
+     *
+     * @param percentile a value in [0, 100]
+     * @return bytes per second
+     */
+    public synchronized double byteRatePercentile(double percentile) {
+        return percentile(bytes, percentile);
+    }
+
+    private double percentile(long[] values, double percentile) {
+        checkArgument(percentile >= 0 && percentile <= 100, "percentile out of range");
+        if (count < 2) {
+            return 0;
+        }
+        double[] rates = new double[count - 1];
+        for (int i = 1; i < count; i++) {
+            rates[i - 1] = rate(values, i);
+        }
+        Arrays.sort(rates);
+        int rank = (int) Math.ceil(percentile / 100 * rates.length) - 1;
+        return rates[Math.max(rank, 0)];
+    }
+
+    /**
+     * Rate between the (i-1)-th and i-th oldest samples. Counter resets yield 0.
+     */
+    private double rate(long[] values, int i) {
+        int start = (next - count + timestamps.length) % timestamps.length;
+        int cur = (start + i) % timestamps.length;
+        int prev = (start + i - 1) % timestamps.length;
+        long elapsed = timestamps[cur] - timestamps[prev];
+        long delta = values[cur] - values[prev];
+        if (elapsed <= 0 || delta < 0) {
+            return 0;
+        }
+        return delta * 1000.0 / elapsed;
+    }
+}
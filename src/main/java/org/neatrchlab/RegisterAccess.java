@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.net.DeviceId;
+
+/**
+ * Access to the register arrays of BMv2 devices.
+ */
+public interface RegisterAccess {
+
+    /**
+     * Reads a range of cells of the given register array.
+     *
+     * @param deviceId     a device id
+     * @param registerName a register array name
+     * @param offset       index of the first cell
+     * @param length       number of cells
+     * @return cell values
+     * @throws Bmv2RuntimeException if the device cannot be read
+     */
+    long[] read(DeviceId deviceId, String registerName, int offset, int length) throws Bmv2RuntimeException;
+
+    /**
+     * Writes a cell of the given register array.
+     *
+     * @param deviceId     a device id
+     * @param registerName a register array name
+     * @param index        cell index
+     * @param value        new value
+     * @throws Bmv2RuntimeException if the device cannot be written
+     */
+    void write(DeviceId deviceId, String registerName, int index, long value) throws Bmv2RuntimeException;
+
+    /**
+     * Zeroes a range of cells of the given register array.
+     *
+     * @param deviceId     a device id
+     * @param registerName a register array name
+     * @param offset       index of the first cell
+     * @param length       number of cells
+     * @throws Bmv2RuntimeException if the device cannot be written
+     */
+    void reset(DeviceId deviceId, String registerName, int offset, int length) throws Bmv2RuntimeException;
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Partition of a register array in contiguous regions, one per target_id, so that the flows of a service can
+ * never overwrite the states of another one. A target_id can have a second, hashed region, indexed by the data
+ * plane for the flows of its wildcard bindings, which keeps those flows away from the slots of its exact ones.
+ * Wildcard bindings pin their region as a whole instead of retaining each of its slots.
+ * <p>
+ * Regions are reserved first-fit and merged back with their free neighbours when released. Within a region,
+ * flows are placed at the slot given by their hash, probing the next slots on collision. The hash of each
+ * placed flow is kept, so that a flow placed again, e.g. the reverse direction of a connection, shares the slot
+ * of the first one instead of taking a new one.
+ */
+public final class RegisterRegions {
+
+    private final int size;
+    // free ranges, from base to length
+    private final NavigableMap<Integer, Integer> free = Maps.newTreeMap();
+    private final ConcurrentMap<Integer, Region> regions = Maps.newConcurrentMap();
+    private final ConcurrentMap<Integer, Region> hashedRegions = Maps.newConcurrentMap();
+
+    /**
+     * Creates new regions for a register array of the given size.
+     *
+     * @param size number of cells
+     */
+    public RegisterRegions(int size) {
+        checkArgument(size > 0, "size must be positive");
+        this.size = size;
+        free.put(0, size);
+    }
+
+    /**
+     * Returns the size of the register array.
+     *
+     * @return an integer
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the region of the given target id.
+     *
+     * @param targetId a target id
+     * @return a region, or null if none is reserved
+     */
+    public Region region(int targetId) {
+        return regions.get(targetId);
+    }
+
+    /**
+     * Returns the hashed region of the given target id.
+     *
+     * @param targetId a target id
+     * @return a region, or null if none is reserved
+     */
+    public Region hashedRegion(int targetId) {
+        return hashedRegions.get(targetId);
+    }
+
+    /**
+     * Returns the region of the given target id holding the given slot.
+     *
+     * @param targetId a target id
+     * @param slot     a slot index
+     * @return a region, or null if the target id has no region holding that slot
+     */
+    public Region region(int targetId, int slot) {
+        Region region = regions.get(targetId);
+        if (region != null && region.contains(slot)) {
+            return region;
+        }
+        region = hashedRegions.get(targetId);
+        return region != null && region.contains(slot) ? region : null;
+    }
+
+    /**
+     * Returns the region of the given target id, reserving one of the given size if needed.
+     *
+     * @param targetId a target id
+     * @param quota    number of slots of a new region
+     * @return a region, or null if no free range of that size is left
+     */
+    public Region reserve(int targetId, int quota) {
+        Region region = regions.get(targetId);
+        return region != null ? region : doReserve(regions, targetId, quota);
+    }
+
+    /**
+     * Returns the hashed region of the given target id, reserving one of the given size if needed.
+     *
+     * @param targetId a target id
+     * @param quota    number of slots of a new region
+     * @return a region, or null if no free range of that size is left
+     */
+    public Region reserveHashed(int targetId, int quota) {
+        Region region = hashedRegions.get(targetId);
+        return region != null ? region : doReserve(hashedRegions, targetId, quota);
+    }
+
+    private synchronized Region doReserve(Map<Integer, Region> regions, int targetId, int quota) {
+        checkArgument(quota > 0, "quota must be positive");
+        Region region = regions.get(targetId);
+        if (region != null) {
+            return region;
+        }
+        for (Map.Entry<Integer, Integer> range : free.entrySet()) {
+            if (range.getValue() >= quota) {
+                int base = range.getKey();
+                free.remove(base);
+                if (range.getValue() > quota) {
+                    free.put(base + quota, range.getValue() - quota);
+                }
+                region = new Region(targetId, base, quota);
+                regions.put(targetId, region);
+                return region;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases the regions of the given target id whose slots are all free.
+     *
+     * @param targetId a target id
+     * @return true if the target id has no region left
+     */
+    public synchronized boolean free(int targetId) {
+        boolean freed = free(regions, targetId);
+        return free(hashedRegions, targetId) && freed;
+    }
+
+    private boolean free(Map<Integer, Region> regions, int targetId) {
+        Region region = regions.get(targetId);
+        if (region == null) {
+            return true;
+        }
+        if (region.used() > 0) {
+            return false;
+        }
+        regions.remove(targetId);
+        int base = region.base;
+        int length = region.size();
+        Map.Entry<Integer, Integer> before = free.floorEntry(base);
+        if (before != null && before.getKey() + before.getValue() == base) {
+            free.remove(before.getKey());
+            base = before.getKey();
+            length += before.getValue();
+        }
+        Integer after = free.remove(base + length);
+        if (after != null) {
+            length += after;
+        }
+        free.put(base, length);
+        return true;
+    }
+
+    /**
+     * Returns the number of slots not reserved by any region.
+     *
+     * @return an integer
+     */
+    public synchronized int unreserved() {
+        return free.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * A range of slots reserved to a target id. Placements and releases are serialized on the region, so that a
+     * slot is never seen claimed without the hash of its flow, nor free with the hash of its previous one.
+     */
+    public static final class Region {
+
+        // hash of the flows placed on free slots, never produced by place()
+        private static final long NO_FLOW = 0;
+
+        private final int targetId;
+        private final int base;
+        private final RegisterSlotAllocator slots;
+        // hash of the flow placed on each slot, and slot of each placed hash, guarded by the region
+        private final long[] flows;
+        private final Map<Long, Integer> offsets = Maps.newHashMap();
+        // wildcard bindings spreading their flows over the whole region, guarded by the region
+        private int pins;
+        private final AtomicLong collisions = new AtomicLong();
+
+        private Region(int targetId, int base, int size) {
+            this.targetId = targetId;
+            this.base = base;
+            this.slots = new RegisterSlotAllocator(size);
+            this.flows = new long[size];
+        }
+
+        public int targetId() {
+            return targetId;
+        }
+
+        /**
+         * Returns the first slot of the region in the register array.
+         *
+         * @return a slot index
+         */
+        public int base() {
+            return base;
+        }
+
+        public int size() {
+            return slots.size();
+        }
+
+        /**
+         * Returns the number of slots in use.
+         *
+         * @return an integer
+         */
+        public synchronized int used() {
+            return pins > 0 ? slots.size() : slots.size() - slots.available();
+        }
+
+        /**
+         * Returns how many placements had to probe past the slot given by the hash of their flow.
+         *
+         * @return an integer
+         */
+        public long collisions() {
+            return collisions.get();
+        }
+
+        /**
+         * Returns true if the given slot of the register array belongs to this region.
+         *
+         * @param slot a slot index
+         * @return a boolean value
+         */
+        public boolean contains(int slot) {
+            return slot >= base && slot < base + slots.size();
+        }
+
+        /**
+         * Places a flow in the region, sharing the slot of a flow with the same hash if there is one.
+         *
+         * @param flowHash hash of the flow
+         * @return a slot index in the register array, or {@link RegisterSlotAllocator#NONE} if the region is full
+         */
+        public synchronized int place(long flowHash) {
+            long flow = flowHash == NO_FLOW ? 1 : flowHash;
+            Integer placed = offsets.get(flow);
+            if (placed != null) {
+                slots.retain(placed);
+                return base + placed;
+            }
+            int size = slots.size();
+            int start = (int) Long.remainderUnsigned(flow, size);
+            for (int i = 0; i < size; i++) {
+                int offset = start + i < size ? start + i : start + i - size;
+                if (slots.claim(offset)) {
+                    flows[offset] = flow;
+                    offsets.put(flow, offset);
+                    if (i > 0) {
+                        collisions.incrementAndGet();
+                    }
+                    return base + offset;
+                }
+            }
+            return RegisterSlotAllocator.NONE;
+        }
+
+        /**
+         * Marks the slot at the given offset as used by one more binding.
+         *
+         * @param offset an offset in the region
+         * @return a slot index in the register array
+         * @throws IllegalArgumentException if the offset is out of the region
+         */
+        public synchronized int retain(int offset) {
+            checkArgument(offset >= 0 && offset < slots.size(), "offset out of region: %s", offset);
+            slots.retain(offset);
+            return base + offset;
+        }
+
+        /**
+         * Marks the whole region as used by one more wildcard binding.
+         *
+         * @return true if the region was not used by any wildcard binding yet
+         */
+        public synchronized boolean pin() {
+            return pins++ == 0;
+        }
+
+        /**
+         * Releases the whole region from one wildcard binding.
+         *
+         * @return true if no wildcard binding uses the region anymore
+         * @throws IllegalStateException if the region is not used by any wildcard binding
+         */
+        public synchronized boolean unpin() {
+            checkState(pins > 0, "region of target_id %s is not pinned", targetId);
+            return --pins == 0;
+        }
+
+        /**
+         * Returns the number of wildcard bindings using the whole region.
+         *
+         * @return an integer
+         */
+        public synchronized int pins() {
+            return pins;
+        }
+
+        /**
+         * Returns the number of bindings referencing the given slot.
+         *
+         * @param slot a slot index in the register array
+         * @return an integer, 0 if the slot is free
+         */
+        public synchronized int references(int slot) {
+            return slots.references(slot - base);
+        }
+
+        /**
+         * Releases one reference to the given slot.
+         *
+         * @param slot a slot index in the register array
+         * @return true if the slot is now free
+         */
+        public synchronized boolean release(int slot) {
+            int offset = slot - base;
+            if (slots.release(offset)) {
+                if (flows[offset] != NO_FLOW) {
+                    offsets.remove(flows[offset]);
+                    flows[offset] = NO_FLOW;
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("targetId", targetId)
+                    .add("base", base)
+                    .add("size", slots.size())
+                    .add("used", used())
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Lock-free allocator of register array cells, backed by an atomic bitmap.
+ * <p>
+ * A slot can be shared by several bindings (e.g. both directions of a TCP connection); it is returned to the
+ * free pool when the last binding referencing it releases it.
+ */
+public final class RegisterSlotAllocator {
+
+    /**
+     * Value returned by {@link #allocate()} when no slot is available.
+     */
+    public static final int NONE = -1;
+
+    private static final int WORD_BITS = Long.SIZE;
+    private static final long FULL = -1L;
+
+    private final int size;
+    private final AtomicLongArray bitmap;
+    private final AtomicIntegerArray shares;
+    private final AtomicInteger free;
+    private final AtomicInteger hint = new AtomicInteger();
+
+    /**
+     * Creates a new allocator for a register array of the given size.
+     *
+     * @param size number of cells
+     */
+    public RegisterSlotAllocator(int size) {
+        checkArgument(size > 0, "size must be positive");
+        this.size = size;
+        int words = (size + WORD_BITS - 1) / WORD_BITS;
+        this.bitmap = new AtomicLongArray(words);
+        this.shares = new AtomicIntegerArray(size);
+        this.free = new AtomicInteger(size);
+        // Mark the tail bits beyond size as permanently used.
+        int tail = size % WORD_BITS;
+        if (tail != 0) {
+            bitmap.set(words - 1, FULL << tail);
+        }
+    }
+
+    /**
+     * Returns an allocator sized after the given register array of the given configuration.
+     *
+     * @param configuration a BMv2 configuration
+     * @param registerName  a register array name
+     * @return a new allocator
+     * @throws IllegalArgumentException if the configuration does not define such register array
+     */
+    public static RegisterSlotAllocator forRegister(Bmv2Configuration configuration, String registerName) {
+        return new RegisterSlotAllocator(registerSize(configuration, registerName));
+    }
+
+    /**
+     * Returns the size of the given register array as declared by the given configuration.
+     *
+     * @param configuration a BMv2 configuration
+     * @param registerName  a register array name
+     * @return number of cells
+     * @throws IllegalArgumentException if the configuration does not define such register array
+     */
+    public static int registerSize(Bmv2Configuration configuration, String registerName) {
+        JsonValue registers = configuration.json().get("register_arrays");
+        if (registers != null) {
+            for (JsonValue value : registers.asArray()) {
+                JsonObject register = value.asObject();
+                if (registerName.equals(register.getString("name", null))) {
+                    return register.getInt("size", 0);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unknown register array " + registerName);
+    }
+
+    /**
+     * Returns the number of slots managed by this allocator.
+     *
+     * @return an integer
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of free slots.
+     *
+     * @return an integer
+     */
+    public int available() {
+        return Math.max(free.get(), 0);
+    }
+
+    /**
+     * Allocates a free slot.
+     *
+     * @return a slot index, or {@link #NONE} if the register is exhausted
+     */
+    public int allocate() {
+        // Reserve first, so that exhaustion is reported without scanning.
+        if (free.decrementAndGet() < 0) {
+            free.incrementAndGet();
+            return NONE;
+        }
+        int words = bitmap.length();
+        int start = hint.get();
+        // Two passes, a concurrent retain() may take the slot we reserved a count for.
+        for (int i = 0; i < 2 * words; i++) {
+            int w = (start + i) % words;
+            long word = bitmap.get(w);
+            while (word != FULL) {
+                int bit = Long.numberOfTrailingZeros(~word);
+                if (bitmap.compareAndSet(w, word, word | (1L << bit))) {
+                    hint.set(w);
+                    int slot = w * WORD_BITS + bit;
+                    shares.incrementAndGet(slot);
+                    return slot;
+                }
+                word = bitmap.get(w);
+            }
+        }
+        free.incrementAndGet();
+        return NONE;
+    }
+
+    /**
+     * Allocates the given slot if it is free.
+     *
+     * @param slot a slot index
+     * @return true if the slot has been allocated, false if it was already in use
+     */
+    public boolean claim(int slot) {
+        checkSlot(slot);
+        if (!setBit(slot)) {
+            return false;
+        }
+        shares.incrementAndGet(slot);
+        free.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Marks the given slot as used by one more binding, allocating it if it was free.
+     *
+     * @param slot a slot index
+     */
+    public void retain(int slot) {
+        checkSlot(slot);
+        shares.incrementAndGet(slot);
+        if (setBit(slot)) {
+            free.decrementAndGet();
+        }
+    }
+
+    /**
+     * Releases one reference to the given slot. The slot becomes free once all references are released.
+     *
+     * @param slot a slot index
+     * @return true if the slot has been returned to the free pool
+     */
+    public boolean release(int slot) {
+        checkSlot(slot);
+        int left = shares.decrementAndGet(slot);
+        if (left < 0) {
+            // Not allocated, ignore.
+            shares.incrementAndGet(slot);
+            return false;
+        }
+        if (left > 0 || !clearBit(slot)) {
+            return false;
+        }
+        free.incrementAndGet();
+        // A concurrent retain() may have slipped in between the decrement and the clear.
+        if (shares.get(slot) > 0 && setBit(slot)) {
+            free.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of bindings referencing the given slot.
+     *
+     * @param slot a slot index
+     * @return an integer, 0 if the slot is free
+     */
+    public int references(int slot) {
+        checkSlot(slot);
+        return shares.get(slot);
+    }
+
+    /**
+     * Returns true if the given slot is in use.
+     *
+     * @param slot a slot index
+     * @return a boolean value
+     */
+    public boolean isAllocated(int slot) {
+        checkSlot(slot);
+        return (bitmap.get(slot / WORD_BITS) & (1L << (slot % WORD_BITS))) != 0;
+    }
+
+    private boolean setBit(int slot) {
+        int w = slot / WORD_BITS;
+        long mask = 1L << (slot % WORD_BITS);
+        while (true) {
+            long word = bitmap.get(w);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            if (bitmap.compareAndSet(w, word, word | mask)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean clearBit(int slot) {
+        int w = slot / WORD_BITS;
+        long mask = 1L << (slot % WORD_BITS);
+        while (true) {
+            long word = bitmap.get(w);
+            if ((word & mask) == 0) {
+                return false;
+            }
+            if (bitmap.compareAndSet(w, word, word & ~mask)) {
+                return true;
+            }
+        }
+    }
+
+    private void checkSlot(int slot) {
+        checkArgument(slot >= 0 && slot < size, "slot %s out of range [0, %s)", slot, size);
+    }
+}
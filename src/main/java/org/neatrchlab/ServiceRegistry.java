@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Registry of the stateful services known to the app, each one compiled to a rule template and identified in
+ * the data plane by its own target_id.
+ * <p>
+ * Target ids are handed out over the whole 16-bit range of state_metadata.target_id, so that many instances of
+ * the same FSM, e.g. one firewall per tenant, can run side by side with isolated states. Lookups are lock-free,
+ * registrations are serialized.
+ */
+public final class ServiceRegistry {
+
+    private final Bmv2Configuration configuration;
+    private final ConcurrentMap<String, FsmRuleTemplate> services = Maps.newConcurrentMap();
+    private final RegisterSlotAllocator targetIds = new RegisterSlotAllocator(StatefulFsm.MAX_TARGET_ID + 1);
+
+    /**
+     * Creates a new registry of services for the given configuration.
+     *
+     * @param configuration a BMv2 configuration
+     */
+    public ServiceRegistry(Bmv2Configuration configuration) {
+        this.configuration = checkNotNull(configuration);
+        // Carried by packets bound to no service, never handed out.
+        targetIds.retain(0);
+    }
+
+    /**
+     * Returns the template of the given service.
+     *
+     * @param name a service name
+     * @return a rule template, or null if unknown
+     */
+    public FsmRuleTemplate get(String name) {
+        return services.get(name);
+    }
+
+    /**
+     * Returns all the registered services.
+     *
+     * @return rule templates
+     */
+    public Collection<FsmRuleTemplate> services() {
+        return ImmutableList.copyOf(services.values());
+    }
+
+    /**
+     * Returns the number of target ids still available.
+     *
+     * @return an integer
+     */
+    public int availableTargetIds() {
+        return targetIds.available();
+    }
+
+    /**
+     * Registers the given FSM, replacing any service with the same name. A target id is allocated if the FSM
+     * does not specify one.
+     *
+     * @param fsm a FSM definition
+     * @return the rule template of the service
+     * @throws IllegalArgumentException if the target id is used by another service, no target id is left or
+     *                                  the FSM does not fit the configuration
+     */
+    public synchronized FsmRuleTemplate register(StatefulFsm fsm) {
+        FsmRuleTemplate existing = services.get(fsm.name());
+        int targetId = fsm.targetId();
+        if (targetId == 0 && existing != null) {
+            targetId = existing.fsm().targetId();
+        }
+        if (targetId == 0) {
+            targetId = allocate();
+        } else if (targetIds.isAllocated(targetId) &&
+                (existing == null || existing.fsm().targetId() != targetId)) {
+            throw new IllegalArgumentException("target_id " + targetId + " already used by " + owner(targetId));
+        } else {
+            targetIds.retain(targetId);
+        }
+        FsmRuleTemplate template;
+        try {
+            template = FsmRuleTemplate.compile(fsm.instance(fsm.name(), targetId), configuration);
+        } catch (IllegalArgumentException e) {
+            targetIds.release(targetId);
+            throw e;
+        }
+        services.put(fsm.name(), template);
+        if (existing != null) {
+            targetIds.release(existing.fsm().targetId());
+        }
+        return template;
+    }
+
+    /**
+     * Registers a new instance of the given service, with its own target id.
+     *
+     * @param service a service name
+     * @param name    name of the new instance
+     * @return the rule template of the instance
+     * @throws IllegalArgumentException if the service is unknown, the name is taken or no target id is left
+     */
+    public synchronized FsmRuleTemplate instantiate(String service, String name) {
+        FsmRuleTemplate template = services.get(service);
+        if (template == null) {
+            throw new IllegalArgumentException("Unknown service " + service);
+        }
+        if (services.containsKey(name)) {
+            throw new IllegalArgumentException("Service " + name + " already exists");
+        }
+        int targetId = allocate();
+        FsmRuleTemplate instance;
+        try {
+            instance = FsmRuleTemplate.compile(template.fsm().instance(name, targetId), configuration);
+        } catch (IllegalArgumentException e) {
+            targetIds.release(targetId);
+            throw e;
+        }
+        services.put(name, instance);
+        return instance;
+    }
+
+    /**
+     * Removes the given service and frees its target id.
+     *
+     * @param name a service name
+     * @return the removed rule template, or null if unknown
+     */
+    public synchronized FsmRuleTemplate unregister(String name) {
+        FsmRuleTemplate template = services.remove(name);
+        if (template != null) {
+            targetIds.release(template.fsm().targetId());
+        }
+        return template;
+    }
+
+    private int allocate() {
+        int targetId = targetIds.allocate();
+        if (targetId == RegisterSlotAllocator.NONE) {
+            throw new IllegalArgumentException("No target_id left");
+        }
+        return targetId;
+    }
+
+    private String owner(int targetId) {
+        return services.values().stream()
+                .filter(template -> template.fsm().targetId() == targetId)
+                .map(template -> template.fsm().name())
+                .findFirst().orElse("another service");
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.TrafficSelector;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of the flow rules and bound selectors installed on behalf of each service, keyed by service name and
+ * target_id, so that a single service can be torn down without scanning the rules of the others.
+ */
+public final class ServiceRuleIndex {
+
+    private final ConcurrentMap<Key, Entry> index = Maps.newConcurrentMap();
+
+    /**
+     * Records the given rules as installed for the given service.
+     *
+     * @param service  a service name
+     * @param targetId a target id
+     * @param rules    flow rules
+     */
+    public void addRules(String service, int targetId, Collection<FlowRule> rules) {
+        entry(service, targetId).rules.addAll(rules);
+    }
+
+    /**
+     * Forgets the given rules of the given service.
+     *
+     * @param service  a service name
+     * @param targetId a target id
+     * @param rules    flow rules
+     */
+    public void removeRules(String service, int targetId, Collection<FlowRule> rules) {
+        Entry entry = index.get(new Key(service, targetId));
+        if (entry != null) {
+            entry.rules.removeAll(rules);
+        }
+    }
+
+    /**
+     * Records the given selector as bound to the given service, together with its rules.
+     *
+     * @param service  a service name
+     * @param targetId a target id
+     * @param selector a traffic selector
+     * @param rules    flow rules installed for the binding
+     */
+    public void addBinding(String service, int targetId, TrafficSelector selector, Collection<FlowRule> rules) {
+        Entry entry = entry(service, targetId);
+        entry.rules.addAll(rules);
+        entry.selectors.add(selector);
+    }
+
+    /**
+     * Forgets the given binding and its rules.
+     *
+     * @param service  a service name
+     * @param targetId a target id
+     * @param selector a traffic selector
+     * @param rules    flow rules installed for the binding
+     */
+    public void removeBinding(String service, int targetId, TrafficSelector selector, Collection<FlowRule> rules) {
+        Entry entry = index.get(new Key(service, targetId));
+        if (entry != null) {
+            entry.rules.removeAll(rules);
+            entry.selectors.remove(selector);
+        }
+    }
+
+    /**
+     * Returns the rules currently recorded for the given service.
+     *
+     * @param service  a service name
+     * @param targetId a target id
+     * @return an immutable copy of the rules
+     */
+    public Set<FlowRule> rules(String service, int targetId) {
+        Entry entry = index.get(new Key(service, targetId));
+        return entry == null ? Collections.emptySet() : ImmutableSet.copyOf(entry.rules);
+    }
+
+    /**
+     * Returns the rules currently recorded for all the services.
+     *
+     * @return an immutable copy of the rules
+     */
+    public Set<FlowRule> rules() {
+        ImmutableSet.Builder<FlowRule> builder = ImmutableSet.builder();
+        index.values().forEach(entry -> builder.addAll(entry.rules));
+        return builder.build();
+    }
+
+    /**
+     * Removes and returns everything recorded for the given service.
+     *
+     * @param service  a service name
+     * @param targetId a target id
+     * @return the removed entry, or null if nothing was recorded
+     */
+    public Entry removeService(String service, int targetId) {
+        return index.remove(new Key(service, targetId));
+    }
+
+    private Entry entry(String service, int targetId) {
+        return index.computeIfAbsent(new Key(service, targetId), k -> new Entry());
+    }
+
+    /**
+     * Rules and bound selectors of a service.
+     */
+    public static final class Entry {
+        private final Set<FlowRule> rules = ConcurrentHashMap.newKeySet();
+        private final Set<TrafficSelector> selectors = ConcurrentHashMap.newKeySet();
+
+        public Set<FlowRule> rules() {
+            return rules;
+        }
+
+        public Set<TrafficSelector> selectors() {
+            return selectors;
+        }
+    }
+
+    private static final class Key {
+        private final String service;
+        private final int targetId;
+
+        private Key(String service, int targetId) {
+            this.service = service;
+            this.targetId = targetId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(service, targetId);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return targetId == other.targetId && service.equals(other.service);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("service", service)
+                    .add("targetId", targetId)
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.neatrchlab.service.StateDelta;
+import org.neatrchlab.service.StateListener;
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.net.DeviceId;
+import org.slf4j.Logger;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntUnaryOperator;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Periodic reader of the state_register of BMv2 devices.
+ * <p>
+ * Each poll reads the register array in chunks, in parallel, keeps the result as the latest snapshot, publishes
+ * the changed cells to listeners and recomputes the per-target_id state histograms. Chunks without any owned slot
+ * are not read and count as all zeroes, so the cost of a poll follows the number of bound flows rather than the
+ * size of the array.
+ */
+public final class StateRegisterMonitor {
+
+    /**
+     * Number of distinct values of an 8-bit state.
+     */
+    public static final int NUM_STATES = 256;
+
+    private static final int CHUNK_SIZE = 128;
+
+    private final Logger log = getLogger(getClass());
+
+    private final RegisterAccess access;
+    private final String registerName;
+    private final int size;
+    private final ExecutorService readers;
+
+    private final ConcurrentMap<DeviceId, byte[]> snapshots = Maps.newConcurrentMap();
+    private final ConcurrentMap<DeviceId, Map<Integer, long[]>> histograms = Maps.newConcurrentMap();
+    private final Set<StateListener> listeners = new CopyOnWriteArraySet<>();
+
+    /**
+     * Creates a new monitor.
+     *
+     * @param access       register access
+     * @param registerName name of the register array holding states
+     * @param size         size of the register array
+     * @param readers      executor used to read chunks in parallel
+     */
+    public StateRegisterMonitor(RegisterAccess access, String registerName, int size, ExecutorService readers) {
+        this.access = checkNotNull(access);
+        this.registerName = checkNotNull(registerName);
+        this.size = size;
+        this.readers = checkNotNull(readers);
+    }
+
+    public void addListener(StateListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(StateListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns a copy of the latest snapshot of the given device.
+     *
+     * @param deviceId a device id
+     * @return register values, or null if the device has never been polled
+     */
+    public byte[] snapshot(DeviceId deviceId) {
+        byte[] snapshot = snapshots.get(deviceId);
+        return snapshot == null ? null : snapshot.clone();
+    }
+
+    /**
+     * Returns the number of slots in each state for the given target_id, as of the latest snapshot.
+     *
+     * @param deviceId a device id
+     * @param targetId a target id
+     * @return counts indexed by state value, all zeroes if unknown
+     */
+    public long[] histogram(DeviceId deviceId, int targetId) {
+        long[] histogram = histograms.getOrDefault(deviceId, ImmutableMap.of()).get(targetId);
+        return histogram == null ? new long[NUM_STATES] : histogram.clone();
+    }
+
+    /**
+     * Forgets everything known about the given device.
+     *
+     * @param deviceId a device id
+     */
+    public void forget(DeviceId deviceId) {
+        snapshots.remove(deviceId);
+        histograms.remove(deviceId);
+    }
+
+    /**
+     * Reads the register array of the given device and publishes the changes since the previous poll.
+     *
+     * @param deviceId  a device id
+     * @param slotOwner function returning the target_id owning a slot, or a negative value for free slots
+     * @return the delta with the previous snapshot, or null if the poll was interrupted
+     * @throws Bmv2RuntimeException if the device cannot be read
+     */
+    public StateDelta poll(DeviceId deviceId, IntUnaryOperator slotOwner) throws Bmv2RuntimeException {
+        byte[] current = readAll(deviceId, slotOwner);
+        if (current == null) {
+            return null;
+        }
+        byte[] previous = snapshots.put(deviceId, current);
+        histograms.put(deviceId, buildHistograms(current, slotOwner));
+
+        StateDelta delta = StateDelta.between(deviceId, previous, current);
+        if (!delta.isEmpty()) {
+            listeners.forEach(listener -> {
+                try {
+                    listener.event(delta);
+                } catch (RuntimeException e) {
+                    log.warn("Exception in state listener: {}", e.toString());
+                }
+            });
+        }
+        return delta;
+    }
+
+    private byte[] readAll(DeviceId deviceId, IntUnaryOperator slotOwner) throws Bmv2RuntimeException {
+        Map<Integer, Future<long[]>> chunks = Maps.newLinkedHashMap();
+        for (int offset = 0; offset < size; offset += CHUNK_SIZE) {
+            int chunkOffset = offset;
+            int chunkLength = Math.min(CHUNK_SIZE, size - offset);
+            if (isOwned(chunkOffset, chunkLength, slotOwner)) {
+                chunks.put(chunkOffset,
+                           readers.submit(() -> access.read(deviceId, registerName, chunkOffset, chunkLength)));
+            }
+        }
+
+        byte[] values = new byte[size];
+        try {
+            for (Map.Entry<Integer, Future<long[]>> chunk : chunks.entrySet()) {
+                int offset = chunk.getKey();
+                for (long cell : chunk.getValue().get()) {
+                    values[offset++] = (byte) cell;
+                }
+            }
+        } catch (InterruptedException e) {
+            chunks.values().forEach(chunk -> chunk.cancel(true));
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            chunks.values().forEach(chunk -> chunk.cancel(true));
+            if (e.getCause() instanceof Bmv2RuntimeException) {
+                throw (Bmv2RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return values;
+    }
+
+    private static boolean isOwned(int offset, int length, IntUnaryOperator slotOwner) {
+        for (int i = offset; i < offset + length; i++) {
+            if (slotOwner.applyAsInt(i) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<Integer, long[]> buildHistograms(byte[] snapshot, IntUnaryOperator slotOwner) {
+        Map<Integer, long[]> result = Maps.newHashMap();
+        for (int i = 0; i < snapshot.length; i++) {
+            int owner = slotOwner.applyAsInt(i);
+            if (owner < 0) {
+                continue;
+            }
+            result.computeIfAbsent(owner, k -> new long[NUM_STATES])[snapshot[i] & 0xff]++;
+        }
+        return ImmutableMap.copyOf(result);
+    }
+}
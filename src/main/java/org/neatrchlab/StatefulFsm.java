@@ -0,0 +1,366 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Declarative definition of a stateful data plane service, i.e. a finite state machine made of states,
+ * triggers, state transitions and per-state actions, plus the get_state action used to extract the trigger.
+ * <p>
+ * Definitions are written in JSON, e.g.:
+ * <pre>
+ * {
+ *   "name": "sfw",
+ *   "targetId": 1,
+ *   "extractor": "get_state_with_tcp_flag",
+ *   "triggers": {"SYN": 2, "ACK": 16},
+ *   "states": {"TCP_INIT": 0, "TCP_SYN": 1},
+ *   "transitions": [{"from": "TCP_INIT", "trigger": "SYN", "to": "TCP_SYN"}],
+ *   "actions": [{"state": "TCP_INIT", "output": 2}],
+ *   "closed": ["TCP_STOP"],
+ *   "registerQuota": 64
+ * }
+ * </pre>
+ * The target id can be omitted to get one allocated when the service is registered. The optional register quota
+ * sizes the state_register regions of the service, and of each of its instances, instead of the default quota.
+ * A trigger can be a number, a trigger name or an array of names OR-ed together. An action without
+ * "output" drops the packet. The optional "closed" states mark finished flows, which can be reclaimed
+ * shortly after reaching them.
+ */
+public final class StatefulFsm {
+
+    private static final String NAME = "name";
+    private static final String TARGET_ID = "targetId";
+    private static final String EXTRACTOR = "extractor";
+    private static final String TRIGGERS = "triggers";
+    private static final String STATES = "states";
+    private static final String TRANSITIONS = "transitions";
+    private static final String ACTIONS = "actions";
+    private static final String FROM = "from";
+    private static final String TO = "to";
+    private static final String TRIGGER = "trigger";
+    private static final String STATE = "state";
+    private static final String OUTPUT = "output";
+    private static final String CLOSED = "closed";
+    private static final String REGISTER_QUOTA = "registerQuota";
+
+    /**
+     * Largest target id, state_metadata.target_id is 16 bits wide.
+     */
+    public static final int MAX_TARGET_ID = 0xffff;
+
+    private static final int MAX_STATE = 0xff;
+    private static final int MAX_TRIGGER = 0xffff;
+
+    private final String name;
+    private final int targetId;
+    private final String extractor;
+    private final ImmutableMap<String, Byte> states;
+    private final ImmutableList<Transition> transitions;
+    private final ImmutableList<StateAction> actions;
+    private final ImmutableSet<Byte> closedStates;
+    private final int registerQuota;
+
+    private StatefulFsm(String name, int targetId, String extractor, ImmutableMap<String, Byte> states,
+                        ImmutableList<Transition> transitions, ImmutableList<StateAction> actions,
+                        ImmutableSet<Byte> closedStates, int registerQuota) {
+        this.name = name;
+        this.targetId = targetId;
+        this.extractor = extractor;
+        this.states = states;
+        this.transitions = transitions;
+        this.actions = actions;
+        this.closedStates = closedStates;
+        this.registerQuota = registerQuota;
+    }
+
+    /**
+     * Returns the name of the service, e.g. "sfw".
+     *
+     * @return a string
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Returns the target id identifying this service in the data plane.
+     *
+     * @return an integer
+     */
+    public int targetId() {
+        return targetId;
+    }
+
+    /**
+     * Returns a copy of this FSM with the given name and target id, i.e. an independent instance of the same
+     * service.
+     *
+     * @param instanceName a service name
+     * @param instanceId   a target id
+     * @return a FSM definition
+     */
+    public StatefulFsm instance(String instanceName, int instanceId) {
+        return new StatefulFsm(checkNotNull(instanceName), checkRange(instanceId, MAX_TARGET_ID, TARGET_ID),
+                               extractor, states, transitions, actions, closedStates, registerQuota);
+    }
+
+    /**
+     * Returns the name of the get_state action used to extract the trigger from packets.
+     *
+     * @return an action name
+     */
+    public String extractor() {
+        return extractor;
+    }
+
+    /**
+     * Returns the named states of this FSM.
+     *
+     * @return a map from state name to state value
+     */
+    public Map<String, Byte> states() {
+        return states;
+    }
+
+    /**
+     * Returns the state transitions of this FSM.
+     *
+     * @return a list of transitions
+     */
+    public List<Transition> transitions() {
+        return transitions;
+    }
+
+    /**
+     * Returns the per-state actions of this FSM.
+     *
+     * @return a list of actions
+     */
+    public List<StateAction> actions() {
+        return actions;
+    }
+
+    /**
+     * Returns the states in which a flow is finished.
+     *
+     * @return a set of state values
+     */
+    public Set<Byte> closedStates() {
+        return closedStates;
+    }
+
+    /**
+     * Returns the number of state_register slots of each region of this service on a device.
+     *
+     * @return an integer, 0 to use the default quota
+     */
+    public int registerQuota() {
+        return registerQuota;
+    }
+
+    /**
+     * Parses a FSM definition from the given stream.
+     *
+     * @param stream an input stream providing JSON
+     * @return a FSM definition
+     * @throws IOException if the stream cannot be read
+     * @throws IllegalArgumentException if the definition is not valid
+     */
+    public static StatefulFsm load(InputStream stream) throws IOException {
+        checkNotNull(stream, "FSM definition not found");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+            return parse(Json.parse(reader).asObject());
+        } catch (UnsupportedOperationException e) {
+            throw new IllegalArgumentException("FSM definition is not a JSON object", e);
+        }
+    }
+
+    /**
+     * Parses a FSM definition from the given JSON object.
+     *
+     * @param json a JSON object
+     * @return a FSM definition
+     * @throws IllegalArgumentException if the definition is not valid
+     */
+    public static StatefulFsm parse(JsonObject json) {
+        String name = json.getString(NAME, null);
+        String extractor = json.getString(EXTRACTOR, null);
+        if (name == null || extractor == null) {
+            throw new IllegalArgumentException("FSM definition must specify a name and an extractor");
+        }
+        int targetId = checkRange(json.getInt(TARGET_ID, 0), MAX_TARGET_ID, TARGET_ID);
+
+        ImmutableMap.Builder<String, Integer> triggersBuilder = ImmutableMap.builder();
+        JsonObject triggersJson = objectOrEmpty(json.get(TRIGGERS));
+        for (JsonObject.Member member : triggersJson) {
+            triggersBuilder.put(member.getName(), checkRange(member.getValue().asInt(), MAX_TRIGGER, TRIGGER));
+        }
+        Map<String, Integer> triggers = triggersBuilder.build();
+
+        ImmutableMap.Builder<String, Byte> statesBuilder = ImmutableMap.builder();
+        JsonObject statesJson = objectOrEmpty(json.get(STATES));
+        for (JsonObject.Member member : statesJson) {
+            statesBuilder.put(member.getName(),
+                              (byte) checkRange(member.getValue().asInt(), MAX_STATE, STATE));
+        }
+        ImmutableMap<String, Byte> states = statesBuilder.build();
+
+        ImmutableList.Builder<Transition> transitions = ImmutableList.builder();
+        for (JsonValue value : arrayOrEmpty(json.get(TRANSITIONS))) {
+            JsonObject transition = value.asObject();
+            transitions.add(new Transition(state(transition.get(FROM), states),
+                                           trigger(transition.get(TRIGGER), triggers),
+                                           state(transition.get(TO), states)));
+        }
+
+        ImmutableList.Builder<StateAction> actions = ImmutableList.builder();
+        for (JsonValue value : arrayOrEmpty(json.get(ACTIONS))) {
+            JsonObject action = value.asObject();
+            JsonValue output = action.get(OUTPUT);
+            actions.add(new StateAction(state(action.get(STATE), states),
+                                        output == null || output.isNull() ? null : output.asLong()));
+        }
+
+        ImmutableSet.Builder<Byte> closedStates = ImmutableSet.builder();
+        for (JsonValue value : arrayOrEmpty(json.get(CLOSED))) {
+            closedStates.add(state(value, states));
+        }
+
+        int registerQuota = checkRange(json.getInt(REGISTER_QUOTA, 0), Integer.MAX_VALUE, REGISTER_QUOTA);
+
+        return new StatefulFsm(name, targetId, extractor, states, transitions.build(), actions.build(),
+                               closedStates.build(), registerQuota);
+    }
+
+    private static JsonObject objectOrEmpty(JsonValue value) {
+        return value == null ? new JsonObject() : value.asObject();
+    }
+
+    private static JsonArray arrayOrEmpty(JsonValue value) {
+        return value == null ? new JsonArray() : value.asArray();
+    }
+
+    private static int checkRange(int value, int max, String what) {
+        if (value < 0 || value > max) {
+            throw new IllegalArgumentException(what + " value out of range: " + value);
+        }
+        return value;
+    }
+
+    private static byte state(JsonValue value, Map<String, Byte> states) {
+        if (value == null) {
+            throw new IllegalArgumentException("Missing state");
+        }
+        if (value.isNumber()) {
+            return (byte) checkRange(value.asInt(), MAX_STATE, STATE);
+        }
+        Byte state = states.get(value.asString());
+        if (state == null) {
+            throw new IllegalArgumentException("Unknown state " + value.asString());
+        }
+        return state;
+    }
+
+    private static short trigger(JsonValue value, Map<String, Integer> triggers) {
+        if (value == null) {
+            return 0;
+        }
+        if (value.isNumber()) {
+            return (short) checkRange(value.asInt(), MAX_TRIGGER, TRIGGER);
+        }
+        int trigger = 0;
+        JsonArray names = value.isArray() ? value.asArray() : new JsonArray().add(value);
+        for (JsonValue name : names) {
+            Integer flag = triggers.get(name.asString());
+            if (flag == null) {
+                throw new IllegalArgumentException("Unknown trigger " + name.asString());
+            }
+            trigger |= flag;
+        }
+        return (short) trigger;
+    }
+
+    /**
+     * A transition from a state to another one on a given trigger.
+     */
+    public static final class Transition {
+        private final byte curState;
+        private final short trigger;
+        private final byte nextState;
+
+        Transition(byte curState, short trigger, byte nextState) {
+            this.curState = curState;
+            this.trigger = trigger;
+            this.nextState = nextState;
+        }
+
+        public byte curState() {
+            return curState;
+        }
+
+        public short trigger() {
+            return trigger;
+        }
+
+        public byte nextState() {
+            return nextState;
+        }
+    }
+
+    /**
+     * The action applied to packets leading to a given state.
+     */
+    public static final class StateAction {
+        private final byte state;
+        private final Long outputPort;
+
+        StateAction(byte state, Long outputPort) {
+            this.state = state;
+            this.outputPort = outputPort;
+        }
+
+        public byte state() {
+            return state;
+        }
+
+        /**
+         * Returns the output port, or null if packets should be dropped.
+         *
+         * @return a port number or null
+         */
+        public Long outputPort() {
+            return outputPort;
+        }
+    }
+}
@@ -15,16 +15,37 @@
  */
 package org.neatrchlab;
 
+import com.google.common.collect.Lists;
 import org.apache.karaf.shell.commands.Argument;
 import org.apache.karaf.shell.commands.Command;
 import org.apache.karaf.shell.commands.Option;
+import org.neatrchlab.service.PrefixBinding;
+import org.neatrchlab.service.StatefulBinding;
 import org.neatrchlab.service.StatefulP4Service;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.Ip4Prefix;
 import org.onlab.packet.IpAddress;
 import org.onosproject.bmv2.api.runtime.Bmv2ExtensionSelector;
 import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.TrafficSelector;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
 /**
  * Created by ubuntu on 16-11-17.
  */
@@ -32,21 +53,32 @@ import org.onosproject.net.flow.TrafficSelector;
         description = "Stateful P4 Data Plane")
 public class StatefulP4Command extends AbstractShellCommand {
 
+    private static final String LOAD = "load";
     private static final String START = "start";
     private static final String STOP = "stop";
     private static final String BIND = "bind";
+    private static final String UNBIND = "unbind";
+    private static final String STATES = "states";
+    private static final String CREATE = "create";
+    private static final String REMOVE = "remove";
+    private static final String SERVICES = "services";
+    private static final String STDIN = "-";
 
-    private int registerId = 0;
-
-    @Argument(index = 0, name = "opertion", description = "Operations: start, stop,",
+    @Argument(index = 0, name = "opertion",
+            description = "Operations: load, start, stop, bind, unbind, states, create, remove, services",
             required = true, multiValued = false)
     private String operation;
 
     @Argument(index = 1, name = "service",
-            description = "Stateful data plane service: Sateful Firwall (sfw) and Stateful LoadBalancer (slb)",
-            required = true, multiValued = false)
+            description = "Stateful data plane service: Sateful Firwall (sfw) and Stateful LoadBalancer (slb), " +
+                    "or the path of a FSM definition to load",
+            required = false, multiValued = false)
     private String service;
 
+    @Option(name = "-i", aliases = "--instance",
+            description = "Name of the service instance to create", required = false, multiValued = false)
+    private String instance;
+
     @Option(name = "-d", aliases = "--ip_dst",
             description = "IP source address", required = false, multiValued = false)
     private String ipDst;
@@ -72,35 +104,246 @@ public class StatefulP4Command extends AbstractShellCommand {
     private String port;
 
     @Option(name = "-r", aliases = "--register_id",
-            description = "Register ID", required = false, multiValued = false)
+            description = "Register ID, relative to the region of the service", required = false, multiValued = false)
     private String regId;
 
-    private int getNewRegisterId() {
-        return registerId++;
-    }
+    @Option(name = "-H", aliases = "--hash",
+            description = "Bind in hash mode: addresses can be prefixes, omitted fields are wildcards and the data " +
+                    "plane places new flows in the register region of the service by hashing their 5-tuple",
+            required = false, multiValued = false)
+    private boolean hashed = false;
+
+    @Option(name = "-f", aliases = "--file",
+            description = "Bind all the flows listed in a file (- for stdin), one per line: " +
+                    "<ip_src>[:tcp_src] <ip_dst>[:tcp_dst] <ip_proto> [output] [register_id]",
+            required = false, multiValued = false)
+    private String bindingsFile;
+
+    @Option(name = "-A", aliases = "--aggregate",
+            description = "Collapse the flows of the file filling whole prefixes into prefix bindings",
+            required = false, multiValued = false)
+    private boolean aggregate = false;
+
+    @Option(name = "-n", aliases = "--device",
+            description = "Target device ID, can be repeated", required = false, multiValued = true)
+    private List<String> deviceIds;
+
+    @Option(name = "-a", aliases = "--all",
+            description = "Target all available devices", required = false, multiValued = false)
+    private boolean allDevices = false;
 
     @Override
     protected void execute() {
         StatefulP4Service p4Service = getService(StatefulP4Service.class);
+        boolean fanOut = allDevices || (deviceIds != null && !deviceIds.isEmpty());
 
-        if (operation.equals(START)) {
-            p4Service.startService(service);
+        if (operation.equals(SERVICES)) {
+            p4Service.getServices().forEach((name, targetId) -> print("%s: target_id=%d", name, targetId));
+            return;
+        }
+        if (service == null) {
+            print("A service is required by %s", operation);
+            return;
+        }
+        if ((tcpSrc == null) != (tcpDst == null)) {
+            print("Both TCP ports are required, e.g. -D 40000 -S 80");
+            return;
+        }
+
+        if (operation.equals(LOAD)) {
+            p4Service.loadService(service);
+        } else if (operation.equals(START)) {
+            if (fanOut) {
+                printReport(p4Service.startService(service, getDevices()));
+            } else {
+                p4Service.startService(service);
+            }
         } else if (operation.equals(STOP)) {
-            p4Service.stopService(service);
+            if (fanOut) {
+                printReport(p4Service.stopService(service, getDevices()));
+            } else {
+                p4Service.stopService(service);
+            }
+        } else if (operation.equals(BIND) && bindingsFile != null && aggregate) {
+            bindAggregatedFromFile(p4Service);
+        } else if (operation.equals(BIND) && bindingsFile != null) {
+            bindFromFile(p4Service);
         } else if (operation.equals(BIND)) {
-            if (regId == null) {
-                p4Service.bindService(service, getNewRegisterId(), getTrafficSelector(), port);
+            int registerId = hashed ? StatefulP4Service.HASHED_REGISTER
+                    : regId == null ? StatefulP4Service.ANY_REGISTER : Integer.parseInt(regId);
+            if (fanOut) {
+                printReport(p4Service.bindService(service, registerId, getTrafficSelector(), port, getDevices()));
             } else {
-                p4Service.bindService(service, Integer.parseInt(regId), getTrafficSelector(), port);
+                p4Service.bindService(service, registerId, getTrafficSelector(), port);
             }
 
+        } else if (operation.equals(UNBIND)) {
+            p4Service.unbindService(service, getTrafficSelector());
+        } else if (operation.equals(CREATE)) {
+            if (instance == null) {
+                print("The name of the instance is required, e.g. -i %s-tenant1", service);
+            } else if (p4Service.createService(service, instance) != 0) {
+                print("Unable to create %s from %s", instance, service);
+            }
+        } else if (operation.equals(REMOVE)) {
+            if (p4Service.removeService(service) != 0) {
+                print("Unable to remove %s, is it stopped on all devices?", service);
+            }
+        } else if (operation.equals(STATES)) {
+            List<DeviceId> devices = getDevices();
+            if (allDevices) {
+                devices = Lists.newArrayList();
+                for (Device device : getService(DeviceService.class).getAvailableDevices()) {
+                    devices.add(device.id());
+                }
+            } else if (devices.isEmpty()) {
+                devices = Collections.singletonList(p4Service.getDefaultDeviceId());
+            }
+            for (DeviceId deviceId : devices) {
+                print("%s:", deviceId);
+                p4Service.getStateHistogram(service, deviceId)
+                        .forEach((state, count) -> print("  %s=%d", state, count));
+            }
         } else {
             print(operation + " is not a valid operation");
         }
     }
 
+    private List<DeviceId> getDevices() {
+        if (allDevices || deviceIds == null) {
+            return Collections.emptyList();
+        }
+        return deviceIds.stream().map(DeviceId::deviceId).collect(Collectors.toList());
+    }
+
+    private void printReport(Map<DeviceId, Integer> report) {
+        report.forEach((deviceId, result) -> print("%s: %s", deviceId, result == 0 ? "OK" : "FAILED"));
+    }
+
+    private void bindFromFile(StatefulP4Service p4Service) {
+        AtomicInteger count = new AtomicInteger();
+        DeviceId deviceId = p4Service.getDefaultDeviceId();
+        // Closing the stream closes the file, but leaves the console input open.
+        try (Stream<String> lines = STDIN.equals(bindingsFile)
+                ? new BufferedReader(new InputStreamReader(System.in)).lines()
+                : Files.lines(Paths.get(bindingsFile))) {
+            Stream<StatefulBinding> bindings = lines
+                    .map(String::trim)
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .map(line -> parseBinding(line, deviceId))
+                    .peek(binding -> count.incrementAndGet());
+            int failed = p4Service.bindServices(service, bindings);
+            if (failed < 0) {
+                print("Unknown service %s", service);
+            } else {
+                print("Bound %d flows to %s, %d failed", count.get() - failed, service, failed);
+            }
+        } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+            print("Unable to read bindings from %s, stopped after %d flows: %s", bindingsFile, count.get(),
+                  e.getMessage());
+        }
+    }
+
+    private void bindAggregatedFromFile(StatefulP4Service p4Service) {
+        try (Stream<String> lines = STDIN.equals(bindingsFile)
+                ? new BufferedReader(new InputStreamReader(System.in)).lines()
+                : Files.lines(Paths.get(bindingsFile))) {
+            List<PrefixBinding> bindings = lines
+                    .map(String::trim)
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .map(StatefulP4Command::parsePrefixBinding)
+                    .collect(Collectors.toList());
+            int failed = p4Service.bindAggregated(service, bindings);
+            if (failed < 0) {
+                print("Unknown service %s", service);
+            } else {
+                print("Bound %d flows to %s, %d aggregated bindings failed", bindings.size(), service, failed);
+            }
+        } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+            print("Unable to read bindings from %s: %s", bindingsFile, e.getMessage());
+        }
+    }
+
+    private static PrefixBinding parsePrefixBinding(String line) {
+        String[] fields = line.split("\\s+");
+        if (fields.length < 3 || fields.length > 4) {
+            throw new IllegalArgumentException("Invalid binding, register ids cannot be aggregated: " + line);
+        }
+        return new PrefixBinding(parsePrefix(fields[0]), parsePrefix(fields[1]), Integer.parseInt(fields[2]),
+                                 fields.length > 3 ? fields[3] : null);
+    }
+
+    /**
+     * Parses a prefix or a single address, null stands for any address.
+     */
+    private static Ip4Prefix parsePrefix(String prefix) {
+        if (prefix == null) {
+            return null;
+        }
+        return prefix.contains("/") ? Ip4Prefix.valueOf(prefix)
+                : Ip4Prefix.valueOf(Ip4Address.valueOf(prefix), Ip4Prefix.MAX_MASK_LENGTH);
+    }
+
+    private static StatefulBinding parseBinding(String line, DeviceId deviceId) {
+        String[] fields = line.split("\\s+");
+        if (fields.length < 3) {
+            throw new IllegalArgumentException("Invalid binding: " + line);
+        }
+        String output = fields.length > 3 ? fields[3] : null;
+        int registerId = fields.length > 4 ? Integer.parseInt(fields[4]) : StatefulP4Service.ANY_REGISTER;
+        String[] src = fields[0].split(":", 2);
+        String[] dst = fields[1].split(":", 2);
+        if (src.length != dst.length) {
+            throw new IllegalArgumentException("Invalid binding, both ports are required: " + line);
+        }
+        TrafficSelector selector = src.length > 1
+                ? buildTrafficSelector(src[0], dst[0], fields[2], src[1], dst[1], deviceId)
+                : buildTrafficSelector(src[0], dst[0], fields[2], deviceId);
+        return new StatefulBinding(selector, registerId, output);
+    }
+
     private TrafficSelector getTrafficSelector() {
         StatefulP4Service p4Service = getService(StatefulP4Service.class);
+        if (hashed) {
+            return buildWildcardSelector(ipSrc, ipDst, ipProto, p4Service.getDefaultDeviceId());
+        }
+        if (tcpSrc != null && tcpDst != null) {
+            return buildTrafficSelector(ipSrc, ipDst, ipProto, tcpSrc, tcpDst, p4Service.getDefaultDeviceId());
+        }
+        return buildTrafficSelector(ipSrc, ipDst, ipProto, p4Service.getDefaultDeviceId());
+    }
+
+    /**
+     * Builds a selector for the ternary tables, where addresses can be prefixes and null fields match any value.
+     */
+    static TrafficSelector buildWildcardSelector(String ipSrc, String ipDst, String ipProto, DeviceId deviceId) {
+        PrefixBinding binding = new PrefixBinding(parsePrefix(ipSrc), parsePrefix(ipDst),
+                                                  ipProto == null ? PrefixBinding.ANY_PROTOCOL
+                                                          : Integer.parseInt(ipProto), null);
+        return AppComponent.buildWildcardSelector(binding, deviceId);
+    }
+
+    static TrafficSelector buildTrafficSelector(String ipSrc, String ipDst, String ipProto,
+                                                DeviceId deviceId) {
+        TrafficSelector.Builder builder = DefaultTrafficSelector.builder();
+        Bmv2ExtensionSelector.Builder extesionBuilder = Bmv2ExtensionSelector.builder();
+
+        extesionBuilder.forConfiguration(AppComponent.STATEFUL_CONFIGURATION);
+
+        extesionBuilder.matchExact("ipv4", "dstAddr", IpAddress.valueOf(ipDst).toOctets());
+        extesionBuilder.matchExact("ipv4", "srcAddr", IpAddress.valueOf(ipSrc).toOctets());
+        extesionBuilder.matchExact("ipv4", "protocol", Byte.valueOf(ipProto));
+
+        builder.extension(extesionBuilder.build(), deviceId);
+
+        return builder.build();
+    }
+
+    /**
+     * Builds a selector of a single TCP connection, bound in flow_state_table and flow_forward_table.
+     */
+    static TrafficSelector buildTrafficSelector(String ipSrc, String ipDst, String ipProto,
+                                                String tcpSrc, String tcpDst, DeviceId deviceId) {
         TrafficSelector.Builder builder = DefaultTrafficSelector.builder();
         Bmv2ExtensionSelector.Builder extesionBuilder = Bmv2ExtensionSelector.builder();
 
@@ -109,10 +352,10 @@ public class StatefulP4Command extends AbstractShellCommand {
         extesionBuilder.matchExact("ipv4", "dstAddr", IpAddress.valueOf(ipDst).toOctets());
         extesionBuilder.matchExact("ipv4", "srcAddr", IpAddress.valueOf(ipSrc).toOctets());
         extesionBuilder.matchExact("ipv4", "protocol", Byte.valueOf(ipProto));
-        // extesionBuilder.matchExact("tcp", "dstPort", (short) ((int) Integer.parseInt(tcpDst)));
-        // extesionBuilder.matchExact("tcp", "srcPort", (short) ((int) Integer.parseInt(tcpSrc)));
+        extesionBuilder.matchExact("tcp", "srcPort", (short) Integer.parseInt(tcpSrc));
+        extesionBuilder.matchExact("tcp", "dstPort", (short) Integer.parseInt(tcpDst));
 
-        builder.extension(extesionBuilder.build(), p4Service.getDefaultDeviceId());
+        builder.extension(extesionBuilder.build(), deviceId);
 
         return builder.build();
     }
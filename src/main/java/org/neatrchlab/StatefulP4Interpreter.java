@@ -27,6 +27,7 @@ import org.onosproject.net.flow.criteria.Criterion;
 import org.onosproject.net.flow.instructions.Instruction;
 import org.onosproject.net.flow.instructions.Instructions;
 
+import java.util.List;
 
 import static org.onosproject.bmv2.api.utils.Bmv2TranslatorUtils.fitByteSequence;
 /**
@@ -36,21 +37,33 @@ public class StatefulP4Interpreter implements Bmv2Interpreter {
 
     protected  static final String CONTROLLER_TABLE = "controller_table";
     protected static final String FORWARD_TABLE = "forward_table";
+    protected static final String PREFIX_FORWARD_TABLE = "prefix_forward_table";
+    protected static final String FLOW_FORWARD_TABLE = "flow_forward_table";
     protected static final String STATE_TABLE = "state_table";
+    protected static final String HASH_STATE_TABLE = "hash_state_table";
+    protected static final String FLOW_STATE_TABLE = "flow_state_table";
     protected static final String STATE_TRANSFER_TABLE = "state_transfer_table";
     protected static final String ACTION_TABLE = "action_table";
 
 
-    private static final ImmutableBiMap<Integer, String> TABLE_ID_MAP = ImmutableBiMap.of(
-            0, CONTROLLER_TABLE,
-            1, FORWARD_TABLE,
-            2, STATE_TABLE,
-            3, STATE_TRANSFER_TABLE,
-            4, ACTION_TABLE);
+    private static final ImmutableBiMap<Integer, String> TABLE_ID_MAP =
+            ImmutableBiMap.<Integer, String>builder()
+                    .put(0, CONTROLLER_TABLE)
+                    .put(1, FORWARD_TABLE)
+                    .put(2, STATE_TABLE)
+                    .put(3, STATE_TRANSFER_TABLE)
+                    .put(4, ACTION_TABLE)
+                    .put(5, HASH_STATE_TABLE)
+                    .put(6, PREFIX_FORWARD_TABLE)
+                    .put(7, FLOW_FORWARD_TABLE)
+                    .put(8, FLOW_STATE_TABLE)
+                    .build();
 
     protected static final String STATE_METADATA = "state_metadata";
     protected static final String TARGET_ID = "target_id";
     protected static final String REGISTER_ID = "register_id";
+    protected static final String BASE = "base";
+    protected static final String SIZE = "size";
     protected static final String CUR_STATE = "cur_state";
     protected static final String NEXT_STATE = "next_state";
     protected static final String TRIGGER = "trigger";
@@ -67,9 +80,27 @@ public class StatefulP4Interpreter implements Bmv2Interpreter {
     protected static final String GET_SATTE_WITH_NOTHING = "get_state_with_nothing";
     protected static final String GET_STATE_WITH_TCP_SRC = "get_state_with_tcp_src_port";
     protected static final String GET_STATE_WITH_TCP_DST = "get_state_with_tcp_dst_port";
+    // Suffix of the variants of the get_state actions indexing state_register by a hash of the 5-tuple.
+    protected static final String BY_HASH = "_by_hash";
 
     private static final String PORT = "port";
 
+    // Beyond this width, forward actions are built on demand rather than precomputed for every port.
+    private static final int MAX_PRECOMPUTED_PORT_BITS = 12;
+
+    private static final ImmutableBiMap<Criterion.Type, String> CRITERION_TYPE_MAP =
+            ImmutableBiMap.<Criterion.Type, String>builder()
+                    .put(Criterion.Type.IN_PORT, "standard_metadata.ingress_port")
+                    .put(Criterion.Type.ETH_DST, "ethernet.dstAddr")
+                    .put(Criterion.Type.ETH_SRC, "ethernet.srcAddr")
+                    .put(Criterion.Type.ETH_TYPE, "ethernet.etherType")
+                    .build();
+
+    private static final Bmv2Action DROP_ACTION = buildActionWithName(DROP);
+    private static final Bmv2Action SEND_TO_CPU_ACTION = buildActionWithName(SEND_TO_CPU);
+
+    // Forward actions of the last configuration seen, indexed by port.
+    private volatile ForwardActions forwardActions;
 
     @Override
     public ImmutableBiMap<Integer, String> tableIdMap() {
@@ -78,53 +109,73 @@ public class StatefulP4Interpreter implements Bmv2Interpreter {
 
     @Override
     public ImmutableBiMap<Criterion.Type, String> criterionTypeMap() {
-        ImmutableBiMap.Builder<Criterion.Type, String> builder = ImmutableBiMap.builder();
-        builder.put(Criterion.Type.IN_PORT, "standard_metadata.ingress_port");
-        builder.put(Criterion.Type.ETH_DST, "ethernet.dstAddr");
-        builder.put(Criterion.Type.ETH_SRC, "ethernet.srcAddr");
-        builder.put(Criterion.Type.ETH_TYPE, "ethernet.etherType");
-        return builder.build();
+        return CRITERION_TYPE_MAP;
     }
 
     @Override
     public Bmv2Action mapTreatment(TrafficTreatment trafficTreatment, Bmv2Configuration bmv2Configuration)
             throws Bmv2InterpreterException {
-        if (trafficTreatment.allInstructions().size() == 0) {
-            return buildActionWithName(DROP);
+        List<Instruction> instructions = trafficTreatment.allInstructions();
+        if (instructions.isEmpty()) {
+            return DROP_ACTION;
         }
 
-        for (Instruction instruction : trafficTreatment.allInstructions()) {
-            switch (instruction.type()) {
-                case OUTPUT: {
-                    Instructions.OutputInstruction outputInstruction =
-                            (Instructions.OutputInstruction) instruction;
-                    if (outputInstruction.port() == PortNumber.CONTROLLER) {
-                        return buildActionWithName(SEND_TO_CPU);
-                    }
-                    return buildForwardAction(outputInstruction.port().toLong(), bmv2Configuration);
-                }
-                default:
-                    return buildActionWithName(DROP);
-            }
+        Instruction instruction = instructions.get(0);
+        if (instruction.type() != Instruction.Type.OUTPUT) {
+            return DROP_ACTION;
         }
+        PortNumber port = ((Instructions.OutputInstruction) instruction).port();
+        if (port.equals(PortNumber.CONTROLLER)) {
+            return SEND_TO_CPU_ACTION;
+        }
+        return forwardActions(bmv2Configuration).get(port.toLong());
+    }
 
-        return buildActionWithName(DROP);
+    private ForwardActions forwardActions(Bmv2Configuration configuration) {
+        ForwardActions actions = forwardActions;
+        if (actions == null || actions.configuration != configuration) {
+            actions = new ForwardActions(configuration);
+            forwardActions = actions;
+        }
+        return actions;
     }
 
-    private static Bmv2Action buildForwardAction(long port, Bmv2Configuration configuration) {
-        int portBitWidth = configuration.action(FORWARD).runtimeData(PORT).bitWidth();
-        ImmutableByteSequence portBs = null;
+    private static Bmv2Action buildForwardAction(long port, int portBitWidth) {
         try {
-            portBs = fitByteSequence(ImmutableByteSequence.copyFrom(port), portBitWidth);
+            ImmutableByteSequence portBs = fitByteSequence(ImmutableByteSequence.copyFrom(port), portBitWidth);
+            return Bmv2Action.builder().withName(FORWARD).addParameter(portBs).build();
         } catch (Exception e) {
-            return buildActionWithName(DROP);
+            return DROP_ACTION;
         }
-        return Bmv2Action.builder().withName(FORWARD).addParameter(portBs).build();
-
     }
+
     private static Bmv2Action buildActionWithName(String name) {
         return Bmv2Action.builder().withName(name).build();
     }
 
+    /**
+     * Forward actions for every port that fits in the port parameter of a configuration.
+     */
+    private static final class ForwardActions {
+        private final Bmv2Configuration configuration;
+        private final int portBitWidth;
+        private final Bmv2Action[] byPort;
+
+        private ForwardActions(Bmv2Configuration configuration) {
+            this.configuration = configuration;
+            this.portBitWidth = configuration.action(FORWARD).runtimeData(PORT).bitWidth();
+            int size = portBitWidth <= MAX_PRECOMPUTED_PORT_BITS ? 1 << portBitWidth : 0;
+            this.byPort = new Bmv2Action[size];
+            for (int port = 0; port < size; port++) {
+                byPort[port] = buildForwardAction(port, portBitWidth);
+            }
+        }
 
+        private Bmv2Action get(long port) {
+            if (port >= 0 && port < byPort.length) {
+                return byPort[(int) port];
+            }
+            return buildForwardAction(port, portBitWidth);
+        }
+    }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import org.apache.karaf.shell.commands.Argument;
+import org.apache.karaf.shell.commands.Command;
+import org.neatrchlab.service.PortLoad;
+import org.neatrchlab.service.StatefulP4Service;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.net.DeviceId;
+
+/**
+ * Shows the load of the ports of a device, as measured by the port counters of the stateful pipeline.
+ */
+@Command(scope = "onos", name = "statefulp4-ports",
+        description = "Shows per-port packet and byte rates")
+public class StatefulP4PortsCommand extends AbstractShellCommand {
+
+    private static final String FORMAT = "%-22s port=%-3d pps=%.1f bps=%.1f p50=%.1f p95=%.1f p99=%.1f";
+
+    @Argument(index = 0, name = "device", description = "Device ID, the default device if omitted",
+            required = false, multiValued = false)
+    private String deviceId;
+
+    @Override
+    protected void execute() {
+        StatefulP4Service p4Service = getService(StatefulP4Service.class);
+        DeviceId device = deviceId == null ? p4Service.getDefaultDeviceId() : DeviceId.deviceId(deviceId);
+        if (device == null) {
+            print("No device available");
+            return;
+        }
+        for (PortLoad load : p4Service.getPortLoad(device)) {
+            print(FORMAT, load.counter(), load.port(), load.packetRate(), load.byteRate() * 8,
+                  load.packetRateP50(), load.packetRateP95(), load.packetRateP99());
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import org.apache.karaf.shell.commands.Command;
+import org.neatrchlab.service.StatefulP4Service;
+import org.onosproject.cli.AbstractShellCommand;
+
+/**
+ * Shows the task queue of each device, where deploys and rule updates are serialized.
+ */
+@Command(scope = "onos", name = "statefulp4-queues",
+        description = "Shows per-device task queue depth and wait times")
+public class StatefulP4QueuesCommand extends AbstractShellCommand {
+
+    private static final String FORMAT = "%-22s depth=%-3d executed=%-8d rejected=%-6d wait.mean=%dus wait.max=%dus";
+
+    @Override
+    protected void execute() {
+        StatefulP4Service p4Service = getService(StatefulP4Service.class);
+        p4Service.getDeviceQueueStats().forEach((deviceId, stats) -> print(
+                FORMAT, deviceId, stats.depth(), stats.executed(), stats.rejected(), stats.meanWait(),
+                stats.maxWait()));
+    }
+}
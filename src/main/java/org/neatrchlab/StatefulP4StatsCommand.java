@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import org.apache.karaf.shell.commands.Command;
+import org.apache.karaf.shell.commands.Option;
+import org.neatrchlab.service.StatefulP4Service;
+import org.onosproject.cli.AbstractShellCommand;
+
+/**
+ * Shows the throughput and latency of the hot paths of the stateful app.
+ */
+@Command(scope = "onos", name = "statefulp4-stats",
+        description = "Shows operation rates and latency percentiles")
+public class StatefulP4StatsCommand extends AbstractShellCommand {
+
+    private static final String HEADER = "%-20s %10s %8s %10s %10s %10s %10s %10s %10s";
+    private static final String FORMAT = "%-20s %10d %8d %10.1f %10.0f %10d %10d %10d %10d";
+
+    @Option(name = "-r", aliases = "--reset",
+            description = "Reset the statistics after printing them", required = false, multiValued = false)
+    private boolean reset = false;
+
+    @Override
+    protected void execute() {
+        StatefulP4Service p4Service = getService(StatefulP4Service.class);
+        print(HEADER, "operation", "count", "failed", "rate/s", "mean(us)", "p50(us)", "p90(us)", "p99(us)",
+              "max(us)");
+        p4Service.getOperationStats().forEach((name, stats) -> print(
+                FORMAT, name, stats.count(), stats.failures(), stats.rate(), stats.mean(), stats.p50(), stats.p90(),
+                stats.p99(), stats.max()));
+        if (reset) {
+            p4Service.resetOperationStats();
+        }
+    }
+}
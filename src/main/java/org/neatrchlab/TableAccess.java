@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import org.onosproject.bmv2.api.runtime.Bmv2ParsedTableEntry;
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.net.DeviceId;
+
+import java.util.List;
+
+/**
+ * Access to the match-action tables of BMv2 devices.
+ */
+public interface TableAccess {
+
+    /**
+     * Returns all the entries of the given table.
+     *
+     * @param deviceId  a device id
+     * @param tableName a table name
+     * @return table entries
+     * @throws Bmv2RuntimeException if the device cannot be read
+     */
+    List<Bmv2ParsedTableEntry> entries(DeviceId deviceId, String tableName) throws Bmv2RuntimeException;
+
+    /**
+     * Deletes an entry of the given table.
+     *
+     * @param deviceId  a device id
+     * @param tableName a table name
+     * @param entryId   id of the entry on the device
+     * @throws Bmv2RuntimeException if the device cannot be written
+     */
+    void delete(DeviceId deviceId, String tableName, long entryId) throws Bmv2RuntimeException;
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.google.common.collect.ImmutableMap;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.context.Bmv2TableModel;
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Controller-side model of the occupancy of the tables of a device, used to admit rule installations before
+ * sending them to the device.
+ * <p>
+ * A request is admitted if all the entries it needs are free, queued if they will be once the pending removals
+ * are confirmed, and rejected otherwise. Queued requests are admitted in order as removals complete.
+ */
+public final class TableOccupancy {
+
+    /**
+     * Outcome of an admission request.
+     */
+    public enum Admission {
+        ADMITTED, QUEUED, REJECTED
+    }
+
+    private final Map<Integer, String> tableNames;
+    private final int[] capacity;
+    private final int[] used;
+    private final int[] pending;
+    private final Queue<Waiter> waiters = new ArrayDeque<>();
+
+    /**
+     * Creates a new occupancy model with all tables empty.
+     *
+     * @param config     a BMv2 configuration, giving the size of each table
+     * @param tableNames table names indexed by flow rule table id
+     */
+    public TableOccupancy(Bmv2Configuration config, Map<Integer, String> tableNames) {
+        this.tableNames = ImmutableMap.copyOf(tableNames);
+        int length = tableNames.keySet().stream().mapToInt(Integer::intValue).max().orElse(-1) + 1;
+        this.capacity = new int[length];
+        this.used = new int[length];
+        this.pending = new int[length];
+        tableNames.forEach((id, name) -> {
+            Bmv2TableModel table = config.table(name);
+            capacity[id] = table == null ? 0 : table.maxSize();
+        });
+    }
+
+    /**
+     * Returns the number of entries of each table needed by the given rules.
+     *
+     * @param rules flow rules
+     * @return entries indexed by table id
+     * @throws IllegalArgumentException if a rule targets an unknown table
+     */
+    public int[] demand(Collection<FlowRule> rules) {
+        int[] demand = new int[capacity.length];
+        for (FlowRule rule : rules) {
+            int id = rule.tableId();
+            if (id < 0 || id >= demand.length) {
+                throw new IllegalArgumentException("Unknown table " + id);
+            }
+            demand[id]++;
+        }
+        return demand;
+    }
+
+    /**
+     * Reserves the entries needed by a request. The returned future is completed with true once the entries are
+     * reserved, or false if the request is rejected. A queued request can be abandoned by cancelling its future.
+     *
+     * @param demand entries indexed by table id
+     * @return a future
+     */
+    public synchronized CompletableFuture<Boolean> reserve(int[] demand) {
+        switch (admission(demand)) {
+            case ADMITTED:
+                add(used, demand, 1);
+                return CompletableFuture.completedFuture(true);
+            case QUEUED:
+                Waiter waiter = new Waiter(demand);
+                waiters.add(waiter);
+                return waiter.future;
+            default:
+                return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Returns how a request would be handled, without reserving anything.
+     *
+     * @param demand entries indexed by table id
+     * @return an admission decision
+     */
+    public synchronized Admission admission(int[] demand) {
+        if (waiters.isEmpty() && fits(demand, false)) {
+            return Admission.ADMITTED;
+        }
+        return fits(demand, true) ? Admission.QUEUED : Admission.REJECTED;
+    }
+
+    /**
+     * Releases the entries of rules that were never installed or are known to be gone.
+     *
+     * @param demand entries indexed by table id
+     */
+    public synchronized void release(int[] demand) {
+        add(used, demand, -1);
+        drain();
+    }
+
+    /**
+     * Records that the removal of some rules has been requested.
+     *
+     * @param demand entries indexed by table id
+     */
+    public synchronized void removing(int[] demand) {
+        add(pending, demand, 1);
+    }
+
+    /**
+     * Records the completion of a removal previously passed to {@link #removing(int[])}.
+     *
+     * @param demand  entries indexed by table id
+     * @param success true if the device confirmed the removal
+     */
+    public synchronized void removed(int[] demand, boolean success) {
+        add(pending, demand, -1);
+        if (success) {
+            add(used, demand, -1);
+        }
+        drain();
+    }
+
+    /**
+     * Returns the number of entries in use, or reserved, in the given table.
+     *
+     * @param table a table name
+     * @return an integer
+     */
+    public synchronized int used(String table) {
+        Integer id = tableId(table);
+        return id == null ? 0 : used[id];
+    }
+
+    /**
+     * Returns the capacity of the given table.
+     *
+     * @param table a table name
+     * @return an integer
+     */
+    public int capacity(String table) {
+        Integer id = tableId(table);
+        return id == null ? 0 : capacity[id];
+    }
+
+    /**
+     * Returns the number of free entries in the given table.
+     *
+     * @param table a table name
+     * @return an integer
+     */
+    public synchronized int available(String table) {
+        return capacity(table) - used(table);
+    }
+
+    /**
+     * Returns how many entries of the given table are missing to satisfy a request right now.
+     *
+     * @param demand entries indexed by table id
+     * @param table  a table name
+     * @return an integer, 0 if the request fits in that table
+     */
+    public synchronized int shortfall(int[] demand, String table) {
+        Integer id = tableId(table);
+        return id == null || id >= demand.length ? 0 : Math.max(demand[id] - (capacity[id] - used[id]), 0);
+    }
+
+    private Integer tableId(String table) {
+        for (Map.Entry<Integer, String> entry : tableNames.entrySet()) {
+            if (entry.getValue().equals(table)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    private boolean fits(int[] demand, boolean withPending) {
+        for (int i = 0; i < demand.length; i++) {
+            int free = capacity[i] - used[i] + (withPending ? pending[i] : 0);
+            if (demand[i] > free) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void add(int[] counts, int[] demand, int sign) {
+        for (int i = 0; i < demand.length; i++) {
+            counts[i] = Math.max(counts[i] + sign * demand[i], 0);
+        }
+    }
+
+    private void drain() {
+        while (!waiters.isEmpty()) {
+            Waiter head = waiters.peek();
+            if (head.future.isDone()) {
+                waiters.poll();
+            } else if (fits(head.demand, false)) {
+                waiters.poll();
+                add(used, head.demand, 1);
+                if (!head.future.complete(true)) {
+                    // Abandoned while queued.
+                    add(used, head.demand, -1);
+                }
+            } else if (!fits(head.demand, true)) {
+                // Removals failed, the request will never fit.
+                waiters.poll().future.complete(false);
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private final int[] demand;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        private Waiter(int[] demand) {
+            this.demand = demand;
+        }
+    }
+}
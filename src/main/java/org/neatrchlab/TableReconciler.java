@@ -0,0 +1,367 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.context.Bmv2FieldModel;
+import org.onosproject.bmv2.api.context.Bmv2Interpreter;
+import org.onosproject.bmv2.api.context.Bmv2InterpreterException;
+import org.onosproject.bmv2.api.context.Bmv2TableKeyModel;
+import org.onosproject.bmv2.api.context.Bmv2TableModel;
+import org.onosproject.bmv2.api.runtime.Bmv2Action;
+import org.onosproject.bmv2.api.runtime.Bmv2ExactMatchParam;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionSelector;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionTreatment;
+import org.onosproject.bmv2.api.runtime.Bmv2LpmMatchParam;
+import org.onosproject.bmv2.api.runtime.Bmv2MatchParam;
+import org.onosproject.bmv2.api.runtime.Bmv2ParsedTableEntry;
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.bmv2.api.runtime.Bmv2TernaryMatchParam;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.ExtensionCriterion;
+import org.onosproject.net.flow.criteria.ExtensionSelector;
+import org.onosproject.net.flow.instructions.ExtensionTreatment;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.Instructions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Anti-entropy between the rules wanted on BMv2 devices and the entries actually found in their tables.
+ * <p>
+ * Each audit dumps the given tables and compares them to the desired rules through a digest per table, i.e. the
+ * number of entries and the sum of the hashes of their match key and action. Only the tables whose digests
+ * disagree are compared entry by entry. Rule translations are cached, so the desired side costs a hash addition
+ * per rule. A difference is reported only if two consecutive audits see it, so that rules still being installed
+ * or removed are not mistaken for lost ones.
+ * <p>
+ * Entries are told apart by owner: the desired rules, the other rules known to the flow rule service for the
+ * device, e.g. of other apps or no longer desired, and the orphan entries no rule accounts for. Only the latter
+ * can be deleted from the device directly, the others are left to the flow rule service.
+ */
+public final class TableReconciler {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    // Translation of the rules that do not target an audited table.
+    private static final Entry IGNORED = new Entry(null, 0, 0);
+
+    private final TableAccess access;
+    private final Bmv2Configuration configuration;
+    private final Bmv2Interpreter interpreter;
+    private final Set<String> tables;
+
+    // Weak identity keys: rules are only equal by match, and are dropped once no longer wanted.
+    private final ConcurrentMap<FlowRule, Entry> translations = new MapMaker().weakKeys().makeMap();
+    // Unconfirmed differences seen by the latest audit of each device.
+    private final ConcurrentMap<DeviceId, Delta> suspects = Maps.newConcurrentMap();
+
+    /**
+     * Creates a new reconciler.
+     *
+     * @param access        table access
+     * @param configuration configuration of the devices
+     * @param interpreter   interpreter of the devices
+     * @param tables        names of the tables to audit
+     */
+    public TableReconciler(TableAccess access, Bmv2Configuration configuration, Bmv2Interpreter interpreter,
+                           Collection<String> tables) {
+        this.access = checkNotNull(access);
+        this.configuration = checkNotNull(configuration);
+        this.interpreter = checkNotNull(interpreter);
+        this.tables = ImmutableSet.copyOf(tables);
+    }
+
+    /**
+     * Compares the tables of the given device with the given rules, no other rule being known for the device.
+     *
+     * @param deviceId a device id
+     * @param desired  rules wanted on the device; rules of other tables are ignored
+     * @return the differences also seen by the previous audit
+     * @throws Bmv2RuntimeException if a table cannot be read
+     */
+    public Delta audit(DeviceId deviceId, Collection<FlowRule> desired) throws Bmv2RuntimeException {
+        return audit(deviceId, desired, Collections.emptyList());
+    }
+
+    /**
+     * Compares the tables of the given device with the given rules.
+     *
+     * @param deviceId a device id
+     * @param desired  rules wanted on the device; rules of other tables are ignored
+     * @param known    other rules of the device known to the flow rule service, not matching any desired one
+     * @return the differences also seen by the previous audit
+     * @throws Bmv2RuntimeException if a table cannot be read
+     */
+    public Delta audit(DeviceId deviceId, Collection<FlowRule> desired, Collection<FlowRule> known)
+            throws Bmv2RuntimeException {
+        Map<String, List<Entry>> wanted = byTable(desired);
+        Map<String, List<Entry>> tracked = byTable(known);
+
+        Delta delta = new Delta();
+        for (String table : tables) {
+            List<Entry> want = wanted.getOrDefault(table, Collections.emptyList());
+            List<Entry> track = tracked.getOrDefault(table, Collections.emptyList());
+            List<Entry> found = Lists.newArrayList();
+            for (Bmv2ParsedTableEntry parsed : access.entries(deviceId, table)) {
+                found.add(translate(table, parsed));
+            }
+            if (want.size() + track.size() != found.size() || digest(want) + digest(track) != digest(found)) {
+                compare(table, want, track, found, delta);
+            }
+        }
+
+        Delta previous = suspects.put(deviceId, delta);
+        return previous == null ? new Delta() : delta.seenBy(previous);
+    }
+
+    /**
+     * Forgets the unconfirmed differences of the given device.
+     *
+     * @param deviceId a device id
+     */
+    public void forget(DeviceId deviceId) {
+        suspects.remove(deviceId);
+    }
+
+    private Map<String, List<Entry>> byTable(Collection<FlowRule> rules) {
+        Map<String, List<Entry>> entries = Maps.newHashMap();
+        for (FlowRule rule : rules) {
+            Entry entry = translations.computeIfAbsent(rule, this::translate);
+            if (entry != IGNORED) {
+                entries.computeIfAbsent(entry.table, k -> Lists.newArrayList()).add(entry.forRule(rule));
+            }
+        }
+        return entries;
+    }
+
+    private static long digest(List<Entry> entries) {
+        long digest = 0;
+        for (Entry entry : entries) {
+            digest += entry.hash;
+        }
+        return digest;
+    }
+
+    private static void compare(String table, List<Entry> want, List<Entry> track, List<Entry> found,
+                                Delta delta) {
+        Map<Long, Entry> byMatch = Maps.newHashMapWithExpectedSize(found.size());
+        found.forEach(entry -> byMatch.put(entry.match, entry));
+        for (Entry entry : want) {
+            Entry actual = byMatch.remove(entry.match);
+            if (actual == null || actual.hash != entry.hash) {
+                delta.missing.add(entry.rule);
+            }
+        }
+        for (Entry entry : track) {
+            if (byMatch.remove(entry.match) != null) {
+                delta.stale.add(entry.rule);
+            }
+        }
+        byMatch.values().forEach(entry -> delta.orphans.put(table, entry.entryId));
+    }
+
+    private Entry translate(FlowRule rule) {
+        String table = interpreter.tableIdMap().get(rule.tableId());
+        Bmv2TableModel model = table == null || !tables.contains(table) ? null : configuration.table(table);
+        Bmv2Action action = model == null ? null : action(rule.treatment());
+        if (action == null) {
+            return IGNORED;
+        }
+        // Only extension criteria are translated, these tables match on program-specific fields only.
+        Map<String, Bmv2MatchParam> params = Maps.newHashMap();
+        for (Criterion criterion : rule.selector().criteria()) {
+            if (criterion.type() == Criterion.Type.EXTENSION) {
+                ExtensionSelector selector = ((ExtensionCriterion) criterion).extensionSelector();
+                if (selector instanceof Bmv2ExtensionSelector) {
+                    params.putAll(((Bmv2ExtensionSelector) selector).parameterMap());
+                }
+            }
+        }
+        List<Bmv2MatchParam> key = Lists.newArrayListWithCapacity(model.keys().size());
+        for (Bmv2TableKeyModel keyModel : model.keys()) {
+            Bmv2FieldModel field = keyModel.field();
+            key.add(params.get(field.header().name() + "." + field.type().name()));
+        }
+        long match = matchHash(key);
+        return new Entry(table, match, entryHash(match, action));
+    }
+
+    private static Entry translate(String table, Bmv2ParsedTableEntry parsed) {
+        long match = matchHash(parsed.matchKey().matchParams());
+        return new Entry(table, match, entryHash(match, parsed.action())).forEntryId(parsed.entryId());
+    }
+
+    private Bmv2Action action(TrafficTreatment treatment) {
+        List<Instruction> instructions = treatment.allInstructions();
+        if (instructions.size() == 1 && instructions.get(0).type() == Instruction.Type.EXTENSION) {
+            ExtensionTreatment extension =
+                    ((Instructions.ExtensionInstructionWrapper) instructions.get(0)).extensionInstruction();
+            if (extension instanceof Bmv2ExtensionTreatment) {
+                return ((Bmv2ExtensionTreatment) extension).action();
+            }
+        }
+        try {
+            return interpreter.mapTreatment(treatment, configuration);
+        } catch (Bmv2InterpreterException e) {
+            return null;
+        }
+    }
+
+    private static long matchHash(List<Bmv2MatchParam> params) {
+        Hasher hasher = HASH.newHasher();
+        for (Bmv2MatchParam param : params) {
+            if (param == null) {
+                hasher.putInt(-1);
+                continue;
+            }
+            hasher.putInt(param.type().ordinal());
+            switch (param.type()) {
+                case EXACT:
+                    putValue(hasher, ((Bmv2ExactMatchParam) param).value());
+                    break;
+                case TERNARY:
+                    putValue(hasher, ((Bmv2TernaryMatchParam) param).value());
+                    putValue(hasher, ((Bmv2TernaryMatchParam) param).mask());
+                    break;
+                case LPM:
+                    putValue(hasher, ((Bmv2LpmMatchParam) param).value());
+                    hasher.putInt(((Bmv2LpmMatchParam) param).prefixLength());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return hasher.hash().asLong();
+    }
+
+    private static long entryHash(long match, Bmv2Action action) {
+        Hasher hasher = HASH.newHasher().putLong(match).putString(action.name(), StandardCharsets.UTF_8);
+        action.parameters().forEach(parameter -> putValue(hasher, parameter));
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * Hashes a value regardless of its width, devices return values fitted to the width of their field.
+     */
+    private static void putValue(Hasher hasher, ImmutableByteSequence value) {
+        byte[] bytes = value.asArray();
+        int start = 0;
+        while (start < bytes.length - 1 && bytes[start] == 0) {
+            start++;
+        }
+        hasher.putInt(bytes.length - start).putBytes(bytes, start, bytes.length - start);
+    }
+
+    /**
+     * Differences between the desired rules and the tables of a device.
+     */
+    public static final class Delta {
+        private final Set<FlowRule> missing = Sets.newLinkedHashSet();
+        private final Set<FlowRule> stale = Sets.newLinkedHashSet();
+        private final SetMultimap<String, Long> orphans = HashMultimap.create();
+
+        /**
+         * Returns the desired rules missing from the device, or found with a different action.
+         *
+         * @return flow rules to install again
+         */
+        public Set<FlowRule> missing() {
+            return Collections.unmodifiableSet(missing);
+        }
+
+        /**
+         * Returns the known rules, not desired, whose entries are on the device.
+         *
+         * @return flow rules to remove through the flow rule service if they belong to the auditing app
+         */
+        public Set<FlowRule> stale() {
+            return Collections.unmodifiableSet(stale);
+        }
+
+        /**
+         * Returns the device entries that match no desired nor known rule.
+         *
+         * @return entry ids by table name
+         */
+        public SetMultimap<String, Long> orphans() {
+            return orphans;
+        }
+
+        public boolean isEmpty() {
+            return missing.isEmpty() && stale.isEmpty() && orphans.isEmpty();
+        }
+
+        private Delta seenBy(Delta previous) {
+            Delta confirmed = new Delta();
+            missing.stream().filter(previous.missing::contains).forEach(confirmed.missing::add);
+            stale.stream().filter(previous.stale::contains).forEach(confirmed.stale::add);
+            orphans.entries().stream()
+                    .filter(entry -> previous.orphans.containsEntry(entry.getKey(), entry.getValue()))
+                    .forEach(entry -> confirmed.orphans.put(entry.getKey(), entry.getValue()));
+            return confirmed;
+        }
+    }
+
+    /**
+     * A table entry, wanted or found, reduced to the hashes of its match key and of the whole entry.
+     */
+    private static final class Entry {
+        private final String table;
+        private final long match;
+        private final long hash;
+        private FlowRule rule;
+        private long entryId;
+
+        private Entry(String table, long match, long hash) {
+            this.table = table;
+            this.match = match;
+            this.hash = hash;
+        }
+
+        private Entry forRule(FlowRule rule) {
+            Entry entry = new Entry(table, match, hash);
+            entry.rule = rule;
+            return entry;
+        }
+
+        private Entry forEntryId(long entryId) {
+            this.entryId = entryId;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Hierarchical timing wheel.
+ * <p>
+ * Timeouts are kept in {@value #LEVELS} wheels of {@value #SLOTS} slots, each slot of a wheel spanning a full
+ * turn of the wheel below, so that scheduling and cancelling are O(1) whatever the delay. Timeouts are moved
+ * to a lower wheel when the wheel below completes a turn. Delays beyond the range of the wheels are clamped.
+ *
+ * @param <T> type of the items scheduled
+ */
+public final class TimingWheel<T> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICKS = (1L << (BITS * LEVELS)) - 1;
+
+    private final long tickMillis;
+    private final Timeout<T>[][] wheels;
+    private long currentTick;
+    private int size;
+
+    /**
+     * Creates a new timing wheel.
+     *
+     * @param tickMillis   resolution of the wheel, in milliseconds
+     * @param startMillis  current time, in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, long startMillis) {
+        checkArgument(tickMillis > 0, "tick must be positive");
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+        this.wheels = new Timeout[LEVELS][];
+        for (int level = 0; level < LEVELS; level++) {
+            wheels[level] = new Timeout[SLOTS];
+            for (int slot = 0; slot < SLOTS; slot++) {
+                // Sentinel of a circular doubly linked list.
+                Timeout<T> head = new Timeout<>(null, 0);
+                head.prev = head;
+                head.next = head;
+                wheels[level][slot] = head;
+            }
+        }
+    }
+
+    /**
+     * Schedules an item. Deadlines in the past expire on the next tick.
+     *
+     * @param item           an item
+     * @param deadlineMillis deadline, in milliseconds
+     * @return a handle to cancel the timeout
+     */
+    public synchronized Timeout<T> schedule(T item, long deadlineMillis) {
+        Timeout<T> timeout = new Timeout<>(item, deadlineMillis);
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Cancels a timeout.
+     *
+     * @param timeout a timeout returned by {@link #schedule}
+     * @return true if the timeout was pending
+     */
+    public synchronized boolean cancel(Timeout<T> timeout) {
+        if (timeout == null || timeout.next == null) {
+            return false;
+        }
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * Advances the wheel up to the given time.
+     *
+     * @param nowMillis current time, in milliseconds
+     * @return the items whose deadline has passed, in deadline order
+     */
+    public synchronized List<T> advance(long nowMillis) {
+        List<T> expired = Lists.newArrayList();
+        long target = nowMillis / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+            int index = (int) (currentTick & MASK);
+            if (index == 0) {
+                cascade(1);
+            }
+            Timeout<T> head = wheels[0][index];
+            while (head.next != head) {
+                Timeout<T> timeout = head.next;
+                unlink(timeout);
+                size--;
+                expired.add(timeout.item);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the number of pending timeouts.
+     *
+     * @return an integer
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void cascade(int level) {
+        if (level >= LEVELS) {
+            return;
+        }
+        int index = (int) ((currentTick >>> (BITS * level)) & MASK);
+        if (index == 0) {
+            cascade(level + 1);
+        }
+        Timeout<T> head = wheels[level][index];
+        while (head.next != head) {
+            Timeout<T> timeout = head.next;
+            unlink(timeout);
+            place(timeout);
+        }
+    }
+
+    private void place(Timeout<T> timeout) {
+        long deadlineTick = Math.max(timeout.deadline / tickMillis, currentTick + 1);
+        long delta = Math.min(deadlineTick - currentTick, MAX_TICKS);
+        deadlineTick = currentTick + delta;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        int index = (int) ((deadlineTick >>> (BITS * level)) & MASK);
+        Timeout<T> head = wheels[level][index];
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    /**
+     * A scheduled item.
+     *
+     * @param <T> type of the item
+     */
+    public static final class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        public T item() {
+            return item;
+        }
+
+        public long deadline() {
+            return deadline;
+        }
+    }
+}
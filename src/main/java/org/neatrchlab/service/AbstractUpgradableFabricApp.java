@@ -20,15 +20,20 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.onosproject.app.ApplicationAdminService;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
 import org.onosproject.bmv2.api.context.Bmv2DeviceContext;
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.bmv2.api.service.Bmv2Controller;
 import org.onosproject.bmv2.api.service.Bmv2DeviceContextService;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
@@ -41,8 +46,12 @@ import org.onosproject.net.device.DeviceEvent;
 import org.onosproject.net.device.DeviceListener;
 import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.FlowEntry;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
 import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
 import org.onosproject.net.flow.FlowRuleService;
 import org.onosproject.net.host.HostEvent;
 import org.onosproject.net.host.HostListener;
@@ -55,17 +64,22 @@ import org.onosproject.net.topology.TopologyService;
 import org.onosproject.net.topology.TopologyVertex;
 import org.slf4j.Logger;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -74,6 +88,8 @@ import static java.util.stream.Stream.concat;
 import static org.onlab.util.Tools.groupedThreads;
 import static org.onosproject.net.device.DeviceEvent.Type.*;
 import static org.onosproject.net.host.HostEvent.Type.HOST_ADDED;
+import static org.onosproject.net.host.HostEvent.Type.HOST_MOVED;
+import static org.onosproject.net.host.HostEvent.Type.HOST_REMOVED;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
@@ -86,7 +102,15 @@ public abstract class AbstractUpgradableFabricApp {
 
     private static final int FLOW_PRIORITY = 100;
 
-    private static final int CLEANUP_SLEEP = 2000;
+    // Upper bound on the wait for the rules of the other app to be removed, or for the hand over to complete.
+    private static final int CLEANUP_TIMEOUT = 10;
+    private static final int DEVICE_QUEUE_DEPTH = 64;
+
+    private static final String INSTALL_FLOW_RULES = "installFlowRules";
+    private static final String REMOVE_FLOW_RULES = "removeFlowRules";
+
+    // Weak identity keys, so configurations of unloaded apps can be collected.
+    private static final ConcurrentMap<Bmv2Configuration, String> FINGERPRINTS = new MapMaker().weakKeys().makeMap();
 
     protected final Logger log = getLogger(getClass());
 
@@ -94,8 +118,20 @@ public abstract class AbstractUpgradableFabricApp {
     private final DeviceListener deviceListener = new InternalDeviceListener();
     private final HostListener hostListener = new InternalHostListener();
 
+    private final ForkJoinPool generatorPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Timers of the operations of this app.
+     */
+    protected final OperationMetrics metrics = new OperationMetrics();
+
     private final ExecutorService executorService = Executors
             .newFixedThreadPool(8, groupedThreads("onos/bmv2-demo-app", "bmv2-app-task", log));
+    // Device tasks run in order on the shared pool, one at a time per device.
+    private final SerialTaskQueues<DeviceId> deviceTasks =
+            new SerialTaskQueues<>(executorService, DEVICE_QUEUE_DEPTH, metrics.timer("deviceQueue.wait"));
+    // Devices with a deploy queued, further deploys are covered by it.
+    private final Set<DeviceId> pendingDeploys = ConcurrentHashMap.newKeySet();
 
     private final String appName;
     private final String configurationName;
@@ -121,7 +157,12 @@ public abstract class AbstractUpgradableFabricApp {
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     private Bmv2DeviceContextService bmv2ContextService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected Bmv2Controller bmv2Controller;
+
     private boolean appActive = false;
+    // Set when another app took over the rules of this one, which must then be left in place on deactivation.
+    private volatile boolean handedOver = false;
     private boolean appFreezed = false;
 
     private boolean otherAppFound = false;
@@ -131,6 +172,7 @@ public abstract class AbstractUpgradableFabricApp {
     private ApplicationId appId;
 
     private Bmv2DeviceContext bmv2Context;
+    private final String configurationMd5;
 
     private Set<DeviceId> leafSwitches;
     private Set<DeviceId> spineSwitches;
@@ -140,7 +182,7 @@ public abstract class AbstractUpgradableFabricApp {
     private Map<DeviceId, Boolean> contextFlags;
     private Map<DeviceId, Boolean> ruleFlags;
 
-    private ConcurrentMap<DeviceId, Lock> deviceLocks = Maps.newConcurrentMap();
+    private FabricPortCache portCache;
 
     /**
      * Creates a new BMv2 fabric app.
@@ -153,6 +195,7 @@ public abstract class AbstractUpgradableFabricApp {
         this.appName = checkNotNull(appName);
         this.configurationName = checkNotNull(configurationName);
         this.bmv2Context = checkNotNull(context);
+        this.configurationMd5 = fingerprint(context.configuration());
     }
 
     @Activate
@@ -176,6 +219,7 @@ public abstract class AbstractUpgradableFabricApp {
 
         appId = coreService.registerApplication(appName);
 
+        portCache = new FabricPortCache(deviceService, topologyService);
         topologyService.addListener(topologyListener);
         deviceService.addListener(deviceListener);
         hostService.addListener(hostListener);
@@ -198,10 +242,21 @@ public abstract class AbstractUpgradableFabricApp {
             List<Runnable> runningTasks = executorService.shutdownNow();
             log.warn("Unable to stop the following tasks: {}", runningTasks);
         }
+        generatorPool.shutdownNow();
         deviceService.removeListener(deviceListener);
         topologyService.removeListener(topologyListener);
         hostService.removeListener(hostListener);
-        flowRuleService.removeFlowRulesById(appId);
+        if (!handedOver) {
+            flowRuleService.removeFlowRulesById(appId);
+            // Rules adopted from the app this one upgraded keep the id of that app.
+            List<FlowRule> adopted = deviceFlowRules.values().stream()
+                    .flatMap(List::stream)
+                    .filter(rule -> rule.appId() != appId.id())
+                    .collect(Collectors.toList());
+            if (!adopted.isEmpty()) {
+                removeFlowRules(adopted);
+            }
+        }
 
         appActive = false;
         APP_HANDLES.remove(appName);
@@ -244,7 +299,7 @@ public abstract class AbstractUpgradableFabricApp {
 
     /**
      * Generates a list of flow rules for the given leaf switch, source host, destination hosts, spine switches and
-     * topology.
+     * topology. May be called concurrently for different devices.
      *
      * @param leaf     a leaf device id
      * @param srcHost  a source host
@@ -259,7 +314,8 @@ public abstract class AbstractUpgradableFabricApp {
             throws FlowRuleGeneratorException;
 
     /**
-     * Generates a list of flow rules for the given spine switch, destination hosts and topology.
+     * Generates a list of flow rules for the given spine switch, destination hosts and topology. May be called
+     * concurrently for different devices.
      *
      * @param deviceId a spine device id
      * @param dstHosts a collection of destination hosts
@@ -272,59 +328,225 @@ public abstract class AbstractUpgradableFabricApp {
 
     private void deployAllDevices() {
         if (otherAppFound && otherApp.appActive) {
+            if (isSameConfiguration(otherApp)) {
+                upgradeHitless();
+                return;
+            }
             log.info("Deactivating other app...");
+            CompletableFuture<Void> cleanup = flowRulesRemoved(otherApp.appId);
             appService.deactivate(otherApp.appId);
-            try {
-                Thread.sleep(CLEANUP_SLEEP);
-            } catch (InterruptedException e) {
-                log.warn("Cleanup sleep interrupted!");
-                Thread.interrupted();
-            }
+            await(cleanup, "cleanup of " + otherApp.appName);
         }
 
         Stream.concat(leafSwitches.stream(), spineSwitches.stream())
                 .map(deviceService::getDevice)
-                .forEach(device -> spawnTask(() -> deployDevice(device)));
+                .forEach(this::deployDevice);
+    }
+
+    private boolean isSameConfiguration(AbstractUpgradableFabricApp other) {
+        return other.bmv2Context.configuration().json().equals(bmv2Context.configuration().json());
+    }
+
+    /**
+     * Replaces the rules of the other app, which uses the same configuration, make-before-break: the rules of this
+     * app are installed first, then the stale rules of the other app are removed once the device confirms the
+     * installation. The devices hold one entry per match, so the rules of the other app matching the same entries
+     * as the new ones are adopted when identical, i.e. kept and tracked by this app, and replaced otherwise. The
+     * other app is deactivated last and leaves its adopted rules in place.
+     */
+    private void upgradeHitless() {
+        log.info("Upgrading {} make-before-break...", otherApp.appName);
+        Map<DeviceId, List<FlowRule>> outgoingRules = otherApp.deviceFlowRules;
+        Map<DeviceId, FlowRuleDiff> diffs = Maps.newHashMap();
+        synchronized (this) {
+            Map<DeviceId, List<FlowRule>> flowRules = Maps.newHashMap(deviceFlowRules);
+            for (DeviceId deviceId : Sets.union(leafSwitches, spineSwitches)) {
+                FlowRuleDiff diff = FlowRuleDiff.between(
+                        outgoingRules.getOrDefault(deviceId, Collections.emptyList()),
+                        deviceFlowRules.getOrDefault(deviceId, Collections.emptyList()));
+                diffs.put(deviceId, diff);
+                flowRules.put(deviceId, diff.installed());
+            }
+            deviceFlowRules = ImmutableMap.copyOf(flowRules);
+        }
+        List<CompletableFuture<Boolean>> upgrades = Lists.newArrayList();
+        for (Map.Entry<DeviceId, FlowRuleDiff> entry : diffs.entrySet()) {
+            DeviceId deviceId = entry.getKey();
+            FlowRuleDiff diff = entry.getValue();
+            CompletableFuture<Boolean> upgrade = new CompletableFuture<>();
+            upgrades.add(upgrade);
+            boolean queued = deviceTasks.execute(deviceId, () -> {
+                ensureContext(deviceId);
+                if (!initDevice(deviceId)) {
+                    log.warn("Failed to initialize device {}", deviceId);
+                }
+                log.info("Upgrading {}: {} rules adopted, {} replaced, {} added, {} removed", deviceId,
+                         diff.installed().size() - diff.toAdd().size(), diff.toReplace().size(),
+                         diff.toAdd().size() - diff.toReplace().size(), diff.toRemove().size());
+                replaceFlowRulesAsync(diff).thenCompose(installed -> {
+                    if (!installed) {
+                        log.warn("Upgrade of {} failed, keeping the rules of {}", deviceId, otherApp.appName);
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    return removeFlowRulesAsync(diff.toRemove());
+                }).thenAccept(upgrade::complete);
+                ruleFlags.put(deviceId, true);
+            });
+            if (!queued) {
+                log.warn("Task queue of {} is full, keeping the rules of {}", deviceId, otherApp.appName);
+                upgrade.complete(false);
+            }
+        }
+
+        await(CompletableFuture.allOf(upgrades.toArray(new CompletableFuture[upgrades.size()])),
+              "upgrade of " + otherApp.appName);
+        otherApp.handedOver = true;
+        appService.deactivate(otherApp.appId);
+        log.info("Upgraded {} devices from {}", upgrades.size(), otherApp.appName);
+    }
+
+    /**
+     * Returns a future completed once the given app has no flow rules left.
+     */
+    private CompletableFuture<Void> flowRulesRemoved(ApplicationId id) {
+        CompletableFuture<Void> removed = new CompletableFuture<>();
+        FlowRuleListener listener = event -> {
+            if (event.type() == FlowRuleEvent.Type.RULE_REMOVED && event.subject().appId() == id.id() &&
+                    !flowRuleService.getFlowEntriesById(id).iterator().hasNext()) {
+                removed.complete(null);
+            }
+        };
+        flowRuleService.addListener(listener);
+        removed.whenComplete((r, e) -> flowRuleService.removeListener(listener));
+        if (!flowRuleService.getFlowEntriesById(id).iterator().hasNext()) {
+            removed.complete(null);
+        }
+        return removed;
+    }
+
+    private void await(CompletableFuture<?> future, String what) {
+        try {
+            future.get(CLEANUP_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for {}", what);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Proceeding without {}: {}", what, e.toString());
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Sets the context of this app on the given device, unless the device already runs it. The check relies on
+     * the configuration fingerprint rather than on the in-memory flags only, which are lost when the app restarts,
+     * so that reconnecting devices keep their pipeline and state.
+     */
+    private void ensureContext(DeviceId deviceId) {
+        if (contextFlags.getOrDefault(deviceId, false)) {
+            return;
+        }
+        if (hasContext(deviceId)) {
+            log.info("{} already runs {}, skipping context swap", deviceId, configurationName);
+        } else {
+            log.info("Setting context to {} for {}...", configurationName, deviceId);
+            bmv2ContextService.setContext(deviceId, bmv2Context);
+        }
+        contextFlags.put(deviceId, true);
+    }
+
+    private boolean hasContext(DeviceId deviceId) {
+        Bmv2DeviceContext current = bmv2ContextService.getContext(deviceId);
+        if (current == null ||
+                !current.interpreter().getClass().getName().equals(bmv2Context.interpreter().getClass().getName())) {
+            return false;
+        }
+        try {
+            return configurationMd5.equalsIgnoreCase(bmv2Controller.getAgent(deviceId).getJsonConfigMd5());
+        } catch (Bmv2RuntimeException e) {
+            log.debug("Unable to read the configuration fingerprint of {}: {}", deviceId, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Returns the fingerprint of the given configuration, i.e. the MD5 of its JSON as uploaded to devices.
+     * Fingerprints are computed once per configuration instance.
+     *
+     * @param configuration a BMv2 configuration
+     * @return a lowercase hex string
+     */
+    protected static String fingerprint(Bmv2Configuration configuration) {
+        return FINGERPRINTS.computeIfAbsent(configuration, c -> Hashing.md5()
+                .hashString(c.json().toString(), StandardCharsets.UTF_8).toString());
     }
 
     /**
-     * Executes a device deploy.
+     * Queues a device deploy. Executions over the same device are serialized, and a deploy requested while
+     * another one is still queued is merged into it.
      *
      * @param device a device
      */
     public void deployDevice(Device device) {
-
         DeviceId deviceId = device.id();
+        if (!pendingDeploys.add(deviceId)) {
+            return;
+        }
+        boolean queued = deviceTasks.execute(deviceId, () -> {
+            pendingDeploys.remove(deviceId);
+            doDeployDevice(deviceId);
+        });
+        if (!queued) {
+            pendingDeploys.remove(deviceId);
+            log.warn("Task queue of {} is full, dropping deploy", deviceId);
+        }
+    }
 
-        // Synchronize executions over the same device.
-        Lock lock = deviceLocks.computeIfAbsent(deviceId, k -> new ReentrantLock());
-        lock.lock();
-
-        try {
-            // Set context if not already done.
-            if (!contextFlags.getOrDefault(deviceId, false)) {
-                log.info("Setting context to {} for {}...", configurationName, deviceId);
-                bmv2ContextService.setContext(deviceId, bmv2Context);
-                contextFlags.put(device.id(), true);
-            }
+    private void doDeployDevice(DeviceId deviceId) {
+        long start = metrics.timer("deployDevice").start();
+        // Set context if not already done.
+        ensureContext(deviceId);
 
-            // Initialize device.
-            if (!initDevice(deviceId)) {
-                log.warn("Failed to initialize device {}", deviceId);
-            }
+        // Initialize device.
+        if (!initDevice(deviceId)) {
+            log.warn("Failed to initialize device {}", deviceId);
+        }
 
-            // Install rules.
-            if (!ruleFlags.getOrDefault(deviceId, false)) {
-                List<FlowRule> rules = deviceFlowRules.getOrDefault(deviceId, Collections.emptyList());
-                if (rules.size() > 0) {
-                    log.info("Installing rules for {}...", deviceId);
-                    installFlowRules(rules);
-                    ruleFlags.put(deviceId, true);
-                }
+        // Install rules.
+        if (!ruleFlags.getOrDefault(deviceId, false)) {
+            List<FlowRule> rules = deviceFlowRules.getOrDefault(deviceId, Collections.emptyList());
+            if (rules.size() > 0) {
+                log.info("Installing rules for {}...", deviceId);
+                installFlowRules(rules);
+                ruleFlags.put(deviceId, true);
             }
-        } finally {
-            lock.unlock();
         }
+        metrics.timer("deployDevice").stop(start);
+    }
+
+    /**
+     * Returns the statistics of the task queue of each device.
+     *
+     * @return queue statistics by device id
+     */
+    public Map<DeviceId, TaskQueueStats> getDeviceQueueStats() {
+        return deviceTasks.stats();
+    }
+
+    /**
+     * Returns the statistics of the timed operations of this app, e.g. rule generation, device deploys and flow
+     * rule installs, measured until the devices confirm them.
+     *
+     * @return statistics by operation name
+     */
+    public Map<String, OperationStats> getOperationStats() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * Resets the statistics of the timed operations of this app.
+     */
+    public void resetOperationStats() {
+        metrics.reset();
     }
 
     private void spawnTask(Runnable task) {
@@ -333,17 +555,125 @@ public abstract class AbstractUpgradableFabricApp {
 
 
     protected void installFlowRules(Collection<FlowRule> rules) {
+        installFlowRulesAsync(rules);
+    }
+
+    protected void installFlowRules(Collection<FlowRule> rules, FlowRuleOperationsContext context) {
         FlowRuleOperations.Builder opsBuilder = FlowRuleOperations.builder();
         rules.forEach(opsBuilder::add);
-        flowRuleService.apply(opsBuilder.build());
+        OperationMetrics.Timer timer = metrics.timer(INSTALL_FLOW_RULES);
+        long start = timer.start();
+        flowRuleService.apply(opsBuilder.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                timer.stop(start);
+                context.onSuccess(ops);
+            }
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                timer.fail(start);
+                context.onError(ops);
+            }
+        }));
+    }
+
+    /**
+     * Returns the id of this app.
+     *
+     * @return an application id
+     */
+    protected ApplicationId getAppId() {
+        return appId;
+    }
+
+    /**
+     * Returns the fabric rules generated for the given device, including those adopted from the app this one
+     * upgraded.
+     *
+     * @param deviceId a device id
+     * @return flow rules
+     */
+    protected List<FlowRule> getDeviceFlowRules(DeviceId deviceId) {
+        return deviceFlowRules.getOrDefault(deviceId, Collections.emptyList());
     }
 
-    private void removeFlowRules(Collection<FlowRule> rules) {
+    /**
+     * Returns the entries of the given device as last read by the flow rule provider, with their packet counts
+     * for the tables having direct counters.
+     *
+     * @param deviceId a device id
+     * @return flow entries
+     */
+    protected Iterable<FlowEntry> getFlowEntries(DeviceId deviceId) {
+        return flowRuleService.getFlowEntries(deviceId);
+    }
+
+    protected void removeFlowRules(Collection<FlowRule> rules) {
         FlowRuleOperations.Builder opsBuilder = FlowRuleOperations.builder();
         rules.forEach(opsBuilder::remove);
         flowRuleService.apply(opsBuilder.build());
     }
 
+    /**
+     * Installs the given rules, returning a future completed with true once the devices confirm all of them,
+     * false if any of them failed.
+     *
+     * @param rules flow rules
+     * @return a future
+     */
+    protected CompletableFuture<Boolean> installFlowRulesAsync(Collection<FlowRule> rules) {
+        FlowRuleOperations.Builder opsBuilder = FlowRuleOperations.builder();
+        rules.forEach(opsBuilder::add);
+        return metrics.timer(INSTALL_FLOW_RULES).time(() -> applyAsync(opsBuilder, rules.isEmpty()), ok -> ok);
+    }
+
+    /**
+     * Removes the given rules, returning a future completed with true once the devices confirm all of them,
+     * false if any of them failed.
+     *
+     * @param rules flow rules
+     * @return a future
+     */
+    protected CompletableFuture<Boolean> removeFlowRulesAsync(Collection<FlowRule> rules) {
+        FlowRuleOperations.Builder opsBuilder = FlowRuleOperations.builder();
+        rules.forEach(opsBuilder::remove);
+        return metrics.timer(REMOVE_FLOW_RULES).time(() -> applyAsync(opsBuilder, rules.isEmpty()), ok -> ok);
+    }
+
+    /**
+     * Removes the rules replaced by the given diff, then adds its new and modified rules, returning a future
+     * completed with true once the devices confirm all of them, false if any of them failed.
+     */
+    private CompletableFuture<Boolean> replaceFlowRulesAsync(FlowRuleDiff diff) {
+        FlowRuleOperations.Builder opsBuilder = FlowRuleOperations.builder();
+        diff.toReplace().forEach(opsBuilder::remove);
+        opsBuilder.newStage();
+        diff.toAdd().forEach(opsBuilder::add);
+        return metrics.timer(INSTALL_FLOW_RULES).time(
+                () -> applyAsync(opsBuilder, diff.toAdd().isEmpty() && diff.toReplace().isEmpty()), ok -> ok);
+    }
+
+    private CompletableFuture<Boolean> applyAsync(FlowRuleOperations.Builder opsBuilder, boolean empty) {
+        if (empty) {
+            return CompletableFuture.completedFuture(true);
+        }
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        flowRuleService.apply(opsBuilder.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                future.complete(true);
+            }
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                log.warn("Failed to apply flow rule operations: {}", ops);
+                future.complete(false);
+            }
+        }));
+        return future;
+    }
+
     /**
      * Generates the flow rules to provide host-to-host connectivity for the given topology and hosts.
      *
@@ -359,12 +689,9 @@ public abstract class AbstractUpgradableFabricApp {
 
         log.info("Starting flow rules generator...");
 
-        TopologyGraph graph = topologyService.getGraph(topo);
         Set<DeviceId> spines = Sets.newHashSet();
         Set<DeviceId> leafs = Sets.newHashSet();
-        graph.getVertexes().stream()
-                .map(TopologyVertex::deviceId)
-                .forEach(did -> (isSpine(did, topo) ? spines : leafs).add(did));
+        classifyDevices(topo, spines, leafs);
 
         /*
         if (spines.size() != NUM_SPINES || leafs.size() != NUM_LEAFS) {
@@ -403,24 +730,9 @@ public abstract class AbstractUpgradableFabricApp {
         */
 
 
-        List<FlowRule> newFlowRules = Lists.newArrayList();
-
-        try {
-            for (DeviceId deviceId : spines) {
-                newFlowRules.addAll(generateLeafRules(deviceId, null, null, spines, topo));
-            }
-            for (DeviceId deviceId : leafs) {
-                newFlowRules.addAll(generateLeafRules(deviceId, null, null, spines, topo));
-            }
-            for (DeviceId deviceId : spines) {
-                newFlowRules.addAll(generateSpineRules(deviceId, hosts, topo));
-            }
-            for (DeviceId deviceId : leafs) {
-                newFlowRules.addAll(generateSpineRules(deviceId, hosts, topo));
-            }
-
-        } catch (FlowRuleGeneratorException e) {
-            log.warn("Exception while executing flow rule generator: ", e.toString());
+        List<DeviceId> devices = concat(spines.stream(), leafs.stream()).collect(Collectors.toList());
+        List<FlowRule> newFlowRules = generateAll(devices, spines, hosts, topo);
+        if (newFlowRules == null) {
             return;
         }
 
@@ -432,14 +744,7 @@ public abstract class AbstractUpgradableFabricApp {
 
         // All good!
         // Divide flow rules per device id...
-        ImmutableMap.Builder<DeviceId, List<FlowRule>> mapBuilder = ImmutableMap.builder();
-        concat(spines.stream(), leafs.stream())
-                .map(deviceId -> ImmutableList.copyOf(newFlowRules
-                        .stream()
-                        .filter(fr -> fr.deviceId().equals(deviceId))
-                        .iterator()))
-                .forEach(frs -> mapBuilder.put(frs.get(0).deviceId(), frs));
-        this.deviceFlowRules = mapBuilder.build();
+        this.deviceFlowRules = partitionByDevice(devices.stream(), newFlowRules);
 
         this.leafSwitches = ImmutableSet.copyOf(leafs);
         this.spineSwitches = ImmutableSet.copyOf(spines);
@@ -452,6 +757,160 @@ public abstract class AbstractUpgradableFabricApp {
         spawnTask(this::deployAllDevices);
     }
 
+    /**
+     * Recomputes the rules of the devices affected by a change, and pushes only their difference with the rules
+     * generated so far. Performs a full generation if none has completed yet.
+     *
+     * @param topo    a topology
+     * @param hosts   a collection of hosts
+     * @param changed devices where a host or device appeared or disappeared
+     */
+    private synchronized void regenerateFlowRules(Topology topo, Collection<Host> hosts, Set<DeviceId> changed) {
+        if (!flowRuleGenerated) {
+            generateFlowRules(topo, hosts);
+            return;
+        }
+
+        Set<DeviceId> spines = Sets.newHashSet();
+        Set<DeviceId> leafs = Sets.newHashSet();
+        classifyDevices(topo, spines, leafs);
+        Set<DeviceId> devices = Sets.union(spines, leafs);
+
+        Map<DeviceId, List<FlowRule>> flowRules = Maps.newHashMap(deviceFlowRules);
+        // Forget devices that left the topology.
+        flowRules.keySet().retainAll(devices);
+
+        List<DeviceId> affected = affectedDevices(changed, spines, leafs).stream()
+                .filter(devices::contains)
+                .collect(Collectors.toList());
+        List<FlowRule> newFlowRules = generateAll(affected, spines, hosts, topo);
+        if (newFlowRules == null) {
+            return;
+        }
+
+        int added = 0;
+        int removed = 0;
+        for (Map.Entry<DeviceId, List<FlowRule>> entry : partitionByDevice(affected.stream(), newFlowRules)
+                .entrySet()) {
+            DeviceId deviceId = entry.getKey();
+            FlowRuleDiff diff = FlowRuleDiff.between(flowRules.getOrDefault(deviceId, Collections.emptyList()),
+                                                     entry.getValue());
+            flowRules.put(deviceId, diff.installed());
+            if (!diff.isEmpty()) {
+                pushDiff(deviceId, diff);
+                added += diff.toAdd().size();
+                removed += diff.toRemove().size();
+            }
+        }
+
+        this.deviceFlowRules = ImmutableMap.copyOf(flowRules);
+        this.leafSwitches = ImmutableSet.copyOf(leafs);
+        this.spineSwitches = ImmutableSet.copyOf(spines);
+
+        log.info("Regenerated rules of {} devices: {} added or modified, {} removed", affected.size(), added,
+                 removed);
+    }
+
+    /**
+     * Returns the devices whose rules must be recomputed after a host or device appeared or disappeared on the
+     * given devices. By default all the devices, as every device gets the spine rules of all the hosts; only the
+     * rules that differ are pushed. Apps whose generators have narrower dependencies can override this.
+     *
+     * @param changed devices where a host or device appeared or disappeared
+     * @param spines  spine devices
+     * @param leafs   leaf devices
+     * @return a set of device ids
+     */
+    protected Set<DeviceId> affectedDevices(Set<DeviceId> changed, Set<DeviceId> spines, Set<DeviceId> leafs) {
+        return Sets.union(spines, leafs);
+    }
+
+    /**
+     * Sends the given diff to a device whose rules are installed. Devices not deployed yet get the whole rule
+     * set on deploy.
+     */
+    private void pushDiff(DeviceId deviceId, FlowRuleDiff diff) {
+        boolean queued = deviceTasks.execute(deviceId, () -> {
+            if (ruleFlags.getOrDefault(deviceId, false)) {
+                FlowRuleOperations.Builder opsBuilder = FlowRuleOperations.builder();
+                diff.toRemove().forEach(opsBuilder::remove);
+                diff.toReplace().forEach(opsBuilder::remove);
+                opsBuilder.newStage();
+                diff.toAdd().forEach(opsBuilder::add);
+                flowRuleService.apply(opsBuilder.build());
+            } else if (contextFlags.getOrDefault(deviceId, false) && !diff.toAdd().isEmpty()) {
+                // Deployed while it had no rules.
+                installFlowRules(diff.toAdd());
+                ruleFlags.put(deviceId, true);
+            }
+        });
+        if (!queued) {
+            log.warn("Task queue of {} is full, dropping {} rule changes", deviceId,
+                     diff.toAdd().size() + diff.toRemove().size());
+        }
+    }
+
+    private void classifyDevices(Topology topo, Set<DeviceId> spines, Set<DeviceId> leafs) {
+        TopologyGraph graph = topologyService.getGraph(topo);
+        graph.getVertexes().stream()
+                .map(TopologyVertex::deviceId)
+                .forEach(did -> (isSpine(did, topo) ? spines : leafs).add(did));
+    }
+
+    /**
+     * Generates the rules of the given devices in parallel, on a dedicated pool to keep the common one free.
+     * Returns null if a generator failed.
+     */
+    private List<FlowRule> generateAll(Collection<DeviceId> devices, Set<DeviceId> spines, Collection<Host> hosts,
+                                       Topology topo) {
+        OperationMetrics.Timer timer = metrics.timer("generateFlowRules");
+        long start = timer.start();
+        try {
+            List<FlowRule> rules = generatorPool.submit(() -> devices.parallelStream()
+                    .flatMap(deviceId -> generateDeviceRules(deviceId, spines, hosts, topo).stream())
+                    .collect(Collectors.toList()))
+                    .get();
+            timer.stop(start);
+            return rules;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            timer.fail(start);
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            log.warn("Exception while executing flow rule generator: {}", String.valueOf(cause));
+            return null;
+        }
+    }
+
+    private List<FlowRule> generateDeviceRules(DeviceId deviceId, Set<DeviceId> spines, Collection<Host> hosts,
+                                               Topology topo) {
+        try {
+            List<FlowRule> rules = Lists.newArrayList(generateLeafRules(deviceId, null, null, spines, topo));
+            rules.addAll(generateSpineRules(deviceId, hosts, topo));
+            return rules;
+        } catch (FlowRuleGeneratorException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Divides the given flow rules per device, in a single pass over the rules. Devices without rules are mapped
+     * to an empty list, rules of other devices are ignored.
+     *
+     * @param devices device ids
+     * @param rules   flow rules
+     * @return a map from device id to the rules of that device, in their original order
+     */
+    protected static Map<DeviceId, List<FlowRule>> partitionByDevice(Stream<DeviceId> devices,
+                                                                     List<FlowRule> rules) {
+        Map<DeviceId, List<FlowRule>> grouped = rules.stream().collect(Collectors.groupingBy(FlowRule::deviceId));
+        ImmutableMap.Builder<DeviceId, List<FlowRule>> mapBuilder = ImmutableMap.builder();
+        devices.distinct().forEach(deviceId -> mapBuilder.put(
+                deviceId, ImmutableList.copyOf(grouped.getOrDefault(deviceId, Collections.emptyList()))));
+        return mapBuilder.build();
+    }
+
     /**
      * Returns a new, pre-configured flow rule builder.
      *
@@ -474,25 +933,17 @@ public abstract class AbstractUpgradableFabricApp {
 
     protected List<Port> getHostPorts(DeviceId deviceId, Topology topology) {
         // Get all non-fabric ports.
-        return deviceService
-                .getPorts(deviceId)
-                .stream()
-                .filter(p -> !isFabricPort(p, topology))
-                .collect(Collectors.toList());
+        return portCache.hostPorts(deviceId, topology);
     }
 
     protected  List<Port> getFabricPorts(DeviceId deviceId, Topology topology) {
-        return deviceService
-                .getPorts(deviceId)
-                .stream()
-                .filter(p -> isFabricPort(p, topology))
-                .collect(Collectors.toList());
+        return portCache.fabricPorts(deviceId, topology);
     }
 
 
     protected boolean isSpine(DeviceId deviceId, Topology topology) {
         // True if all ports are fabric.
-        return getHostPorts(deviceId, topology).size() == 0;
+        return portCache.isSpine(deviceId, topology);
     }
 
     protected boolean isFabricPort(Port port, Topology topology) {
@@ -501,39 +952,49 @@ public abstract class AbstractUpgradableFabricApp {
     }
 
     /**
-     * A listener of topology events that executes a flow rule generation task each time a device is added.
+     * A listener of topology events that executes a flow rule regeneration task each time a device is added or
+     * removed.
      */
     private class InternalTopologyListener implements TopologyListener {
 
         @Override
         public void event(TopologyEvent event) {
-            //spawnTask(() -> generateFlowRules(event.subject(), Sets.newHashSet(hostService.getHosts())));
-        }
-
-        @Override
-        public boolean isRelevant(TopologyEvent event) {
-            return !appFreezed &&
-                    // If at least one reason is of type DEVICE_ADDED.
-                    event.reasons().stream().
-                            filter(r -> r instanceof DeviceEvent)
-                            .filter(r -> ((DeviceEvent) r).type() == DEVICE_ADDED)
-                            .findAny()
-                            .isPresent();
+            // Keep the port classification up to date even when frozen.
+            portCache.event(event);
+            if (appFreezed) {
+                return;
+            }
+            // Devices added or removed.
+            Set<DeviceId> changed = event.reasons().stream()
+                    .filter(r -> r instanceof DeviceEvent)
+                    .map(r -> (DeviceEvent) r)
+                    .filter(e -> e.type() == DEVICE_ADDED || e.type() == DEVICE_REMOVED)
+                    .map(e -> e.subject().id())
+                    .collect(Collectors.toSet());
+            if (!changed.isEmpty()) {
+                spawnTask(() -> regenerateFlowRules(event.subject(), Sets.newHashSet(hostService.getHosts()),
+                                                    changed));
+            }
         }
     }
 
     /**
      * A listener of device events that executes a device deploy task each time a device is added, updated or
-     * re-connects.
+     * re-connects, and keeps the port classification up to date.
      */
     private class InternalDeviceListener implements DeviceListener {
         @Override
         public void event(DeviceEvent event) {
-            spawnTask(() -> deployDevice(event.subject()));
+            portCache.event(event);
+            if (event.type() == DEVICE_REMOVED) {
+                deviceTasks.clear(event.subject().id());
+                pendingDeploys.remove(event.subject().id());
+            } else if (isDeployTrigger(event)) {
+                deployDevice(event.subject());
+            }
         }
 
-        @Override
-        public boolean isRelevant(DeviceEvent event) {
+        private boolean isDeployTrigger(DeviceEvent event) {
             return !appFreezed &&
                     (event.type() == DEVICE_ADDED ||
                             event.type() == DEVICE_UPDATED ||
@@ -543,19 +1004,24 @@ public abstract class AbstractUpgradableFabricApp {
     }
 
     /**
-     * A listener of host events that generates flow rules each time a new host is added.
+     * A listener of host events that regenerates the affected flow rules each time a host is added, removed or
+     * moved.
      */
     private class InternalHostListener implements HostListener {
         @Override
         public void event(HostEvent event) {
-
-            // spawnTask(() -> generateFlowRules(topologyService.currentTopology(),
-                    // Sets.newHashSet(hostService.getHosts())));
+            Set<DeviceId> changed = Sets.newHashSet(event.subject().location().deviceId());
+            if (event.type() == HOST_MOVED && event.prevSubject() != null) {
+                changed.add(event.prevSubject().location().deviceId());
+            }
+            spawnTask(() -> regenerateFlowRules(topologyService.currentTopology(),
+                                                Sets.newHashSet(hostService.getHosts()), changed));
         }
 
         @Override
         public boolean isRelevant(HostEvent event) {
-            return !appFreezed && event.type() == HOST_ADDED;
+            return !appFreezed &&
+                    (event.type() == HOST_ADDED || event.type() == HOST_REMOVED || event.type() == HOST_MOVED);
         }
     }
 
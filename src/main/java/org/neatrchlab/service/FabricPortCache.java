@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyService;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.UnaryOperator;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Cache of the classification of the ports of each device as host or fabric (infrastructure) ports, and of
+ * devices as spines (no host port) or leaves.
+ * <p>
+ * A device is classified in full the first time it is looked up, then kept up to date one port at a time
+ * from device and topology events.
+ */
+public final class FabricPortCache {
+
+    private final DeviceService deviceService;
+    private final TopologyService topologyService;
+    private final ConcurrentMap<DeviceId, DevicePorts> devices = Maps.newConcurrentMap();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param deviceService   device service
+     * @param topologyService topology service
+     */
+    public FabricPortCache(DeviceService deviceService, TopologyService topologyService) {
+        this.deviceService = checkNotNull(deviceService);
+        this.topologyService = checkNotNull(topologyService);
+    }
+
+    /**
+     * Returns the ports of the given device that are not connected to another infrastructure device.
+     *
+     * @param deviceId a device id
+     * @param topology topology used to classify the device if not cached yet
+     * @return a list of ports
+     */
+    public List<Port> hostPorts(DeviceId deviceId, Topology topology) {
+        return ports(deviceId, topology).hostPorts;
+    }
+
+    /**
+     * Returns the ports of the given device that are connected to another infrastructure device.
+     *
+     * @param deviceId a device id
+     * @param topology topology used to classify the device if not cached yet
+     * @return a list of ports
+     */
+    public List<Port> fabricPorts(DeviceId deviceId, Topology topology) {
+        return ports(deviceId, topology).fabricPorts;
+    }
+
+    /**
+     * Returns true if the given device has no host port.
+     *
+     * @param deviceId a device id
+     * @param topology topology used to classify the device if not cached yet
+     * @return a boolean value
+     */
+    public boolean isSpine(DeviceId deviceId, Topology topology) {
+        return ports(deviceId, topology).hostPorts.isEmpty();
+    }
+
+    /**
+     * Updates the cache from a device event.
+     *
+     * @param event a device event
+     */
+    public void event(DeviceEvent event) {
+        DeviceId deviceId = event.subject().id();
+        switch (event.type()) {
+            case DEVICE_REMOVED:
+                devices.remove(deviceId);
+                break;
+            case PORT_ADDED:
+            case PORT_UPDATED:
+                if (event.port() != null) {
+                    Topology topology = topologyService.currentTopology();
+                    update(deviceId, event.port().number(), port -> event.port(), topology);
+                }
+                break;
+            case PORT_REMOVED:
+                if (event.port() != null) {
+                    update(deviceId, event.port().number(), port -> null, null);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Updates the cache from a topology event, reclassifying the end points of added and removed links.
+     *
+     * @param event a topology event
+     */
+    public void event(TopologyEvent event) {
+        Topology topology = event.subject();
+        event.reasons().forEach(reason -> {
+            if (reason instanceof LinkEvent) {
+                LinkEvent linkEvent = (LinkEvent) reason;
+                reclassify(linkEvent.subject().src(), topology);
+                reclassify(linkEvent.subject().dst(), topology);
+            } else if (reason instanceof DeviceEvent) {
+                event((DeviceEvent) reason);
+            }
+        });
+    }
+
+    /**
+     * Forgets all classifications.
+     */
+    public void clear() {
+        devices.clear();
+    }
+
+    private void reclassify(ConnectPoint connectPoint, Topology topology) {
+        if (connectPoint.elementId() instanceof DeviceId) {
+            update(connectPoint.deviceId(), connectPoint.port(), port -> port, topology);
+        }
+    }
+
+    private DevicePorts ports(DeviceId deviceId, Topology topology) {
+        DevicePorts ports = devices.get(deviceId);
+        if (ports == null) {
+            ports = devices.computeIfAbsent(deviceId, k -> classify(k, topology));
+        }
+        return ports;
+    }
+
+    private DevicePorts classify(DeviceId deviceId, Topology topology) {
+        Map<PortNumber, Port> host = Maps.newLinkedHashMap();
+        Map<PortNumber, Port> fabric = Maps.newLinkedHashMap();
+        for (Port port : deviceService.getPorts(deviceId)) {
+            (isFabric(port, topology) ? fabric : host).put(port.number(), port);
+        }
+        return new DevicePorts(host, fabric);
+    }
+
+    /**
+     * Reclassifies a single port of a device already in the cache. The function maps the port currently cached,
+     * if any, to its new value, or to null if the port is gone.
+     */
+    private void update(DeviceId deviceId, PortNumber number, UnaryOperator<Port> newPort,
+                        Topology topology) {
+        devices.computeIfPresent(deviceId, (k, ports) -> {
+            Port current = ports.host.containsKey(number) ? ports.host.get(number) : ports.fabric.get(number);
+            Port port = newPort.apply(current);
+            Map<PortNumber, Port> host = Maps.newLinkedHashMap(ports.host);
+            Map<PortNumber, Port> fabric = Maps.newLinkedHashMap(ports.fabric);
+            host.remove(number);
+            fabric.remove(number);
+            if (port != null) {
+                (isFabric(port, topology) ? fabric : host).put(number, port);
+            }
+            return new DevicePorts(host, fabric);
+        });
+    }
+
+    private boolean isFabric(Port port, Topology topology) {
+        return topologyService.isInfrastructure(topology, new ConnectPoint(port.element().id(), port.number()));
+    }
+
+    /**
+     * Immutable classification of the ports of a device.
+     */
+    private static final class DevicePorts {
+        private final Map<PortNumber, Port> host;
+        private final Map<PortNumber, Port> fabric;
+        private final List<Port> hostPorts;
+        private final List<Port> fabricPorts;
+
+        private DevicePorts(Map<PortNumber, Port> host, Map<PortNumber, Port> fabric) {
+            this.host = host;
+            this.fabric = fabric;
+            this.hostPorts = ImmutableList.copyOf(host.values());
+            this.fabricPorts = ImmutableList.copyOf(fabric.values());
+        }
+    }
+}
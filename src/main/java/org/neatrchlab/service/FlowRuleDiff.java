@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Difference between the current and the desired rules of a device.
+ * <p>
+ * Rules are matched by flow rule identity (device, table, priority and selector). A desired rule whose
+ * treatment or other attributes differ from the current one is re-added, which modifies it in place, and is
+ * not removed.
+ * <p>
+ * A current rule may belong to another app, e.g. one handing its rules over in a hitless upgrade. The devices
+ * hold a single entry per match, so such a rule is adopted when it has the treatment of the desired one, i.e.
+ * kept in place of it, and replaced otherwise, i.e. removed before the desired one is added.
+ */
+public final class FlowRuleDiff {
+
+    private final List<FlowRule> toAdd;
+    private final List<FlowRule> toReplace;
+    private final List<FlowRule> toRemove;
+    private final List<FlowRule> installed;
+
+    private FlowRuleDiff(List<FlowRule> toAdd, List<FlowRule> toReplace, List<FlowRule> toRemove,
+                         List<FlowRule> installed) {
+        this.toAdd = toAdd;
+        this.toReplace = toReplace;
+        this.toRemove = toRemove;
+        this.installed = installed;
+    }
+
+    /**
+     * Computes the operations turning the current rules into the desired ones.
+     *
+     * @param current rules currently installed
+     * @param desired rules that should be installed
+     * @return a diff
+     */
+    public static FlowRuleDiff between(Collection<FlowRule> current, Collection<FlowRule> desired) {
+        Map<FlowRule, FlowRule> installed = Maps.newHashMapWithExpectedSize(current.size());
+        current.forEach(rule -> installed.put(rule, rule));
+        Set<FlowRule> wanted = Sets.newHashSet(desired);
+
+        ImmutableList.Builder<FlowRule> toAdd = ImmutableList.builder();
+        ImmutableList.Builder<FlowRule> toReplace = ImmutableList.builder();
+        ImmutableList.Builder<FlowRule> result = ImmutableList.builder();
+        for (FlowRule rule : desired) {
+            FlowRule old = installed.get(rule);
+            if (old != null && old.appId() != rule.appId()) {
+                if (Objects.equals(old.treatment(), rule.treatment())) {
+                    result.add(old);
+                    continue;
+                }
+                toReplace.add(old);
+            }
+            if (old == null || !old.exactMatch(rule)) {
+                toAdd.add(rule);
+            }
+            result.add(rule);
+        }
+        ImmutableList.Builder<FlowRule> toRemove = ImmutableList.builder();
+        for (FlowRule rule : current) {
+            if (!wanted.contains(rule)) {
+                toRemove.add(rule);
+            }
+        }
+        return new FlowRuleDiff(toAdd.build(), toReplace.build(), toRemove.build(), result.build());
+    }
+
+    /**
+     * Returns the rules to add or modify.
+     *
+     * @return a list of flow rules
+     */
+    public List<FlowRule> toAdd() {
+        return toAdd;
+    }
+
+    /**
+     * Returns the rules of another app to remove before adding the rules replacing them.
+     *
+     * @return a list of flow rules
+     */
+    public List<FlowRule> toReplace() {
+        return toReplace;
+    }
+
+    /**
+     * Returns the rules to remove.
+     *
+     * @return a list of flow rules
+     */
+    public List<FlowRule> toRemove() {
+        return toRemove;
+    }
+
+    /**
+     * Returns the rules of the device once the diff is applied, i.e. the desired rules with the adopted rules in
+     * place of their equivalent.
+     *
+     * @return a list of flow rules
+     */
+    public List<FlowRule> installed() {
+        return installed;
+    }
+
+    /**
+     * Returns true if there is nothing to do.
+     *
+     * @return a boolean value
+     */
+    public boolean isEmpty() {
+        return toAdd.isEmpty() && toReplace.isEmpty() && toRemove.isEmpty();
+    }
+}
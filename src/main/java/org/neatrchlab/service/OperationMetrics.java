@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Named timers of the operations of an app, i.e. counters and latency histograms updated without locks.
+ */
+public final class OperationMetrics {
+
+    private final ConcurrentMap<String, Timer> timers = Maps.newConcurrentMap();
+
+    /**
+     * Returns the timer of the given operation, creating it if needed.
+     *
+     * @param name an operation name
+     * @return a timer
+     */
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, k -> new Timer());
+    }
+
+    /**
+     * Returns the statistics of all the timers.
+     *
+     * @return statistics by operation name, sorted by name
+     */
+    public Map<String, OperationStats> snapshot() {
+        ImmutableSortedMap.Builder<String, OperationStats> builder = ImmutableSortedMap.naturalOrder();
+        timers.forEach((name, timer) -> builder.put(name, timer.stats()));
+        return builder.build();
+    }
+
+    /**
+     * Resets all the timers.
+     */
+    public void reset() {
+        timers.values().forEach(Timer::reset);
+    }
+
+    /**
+     * Counter and latency histogram of an operation.
+     */
+    public static final class Timer {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final LongAdder failures = new LongAdder();
+        private volatile long since = System.nanoTime();
+
+        private Timer() {
+        }
+
+        /**
+         * Returns a start time to pass to {@link #stop} or {@link #fail}.
+         *
+         * @return the current time, in nanoseconds
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Records a successful operation started at the given time.
+         *
+         * @param start a value returned by {@link #start}
+         */
+        public void stop(long start) {
+            latencies.record(System.nanoTime() - start);
+        }
+
+        /**
+         * Records a failed operation started at the given time.
+         *
+         * @param start a value returned by {@link #start}
+         */
+        public void fail(long start) {
+            stop(start);
+            failures.increment();
+        }
+
+        /**
+         * Times an asynchronous operation, from its start to the completion of its future.
+         *
+         * @param operation a function starting the operation
+         * @param succeeded tells whether a result denotes a success
+         * @param <T>       type of the result
+         * @return the future of the operation
+         */
+        public <T> CompletableFuture<T> time(Supplier<CompletableFuture<T>> operation,
+                                             Predicate<? super T> succeeded) {
+            long start = start();
+            CompletableFuture<T> future = operation.get();
+            future.whenComplete((result, error) -> {
+                if (error == null && succeeded.test(result)) {
+                    stop(start);
+                } else {
+                    fail(start);
+                }
+            });
+            return future;
+        }
+
+        private void reset() {
+            latencies.reset();
+            failures.reset();
+            since = System.nanoTime();
+        }
+
+        private OperationStats stats() {
+            long count = latencies.count();
+            double seconds = (System.nanoTime() - since) / (double) TimeUnit.SECONDS.toNanos(1);
+            return new OperationStats(count, failures.sum(), seconds > 0 ? count / seconds : 0,
+                                      latencies.mean() / 1000, micros(latencies.percentile(50)),
+                                      micros(latencies.percentile(90)), micros(latencies.percentile(99)),
+                                      micros(latencies.max()));
+        }
+
+        private static long micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+    }
+}
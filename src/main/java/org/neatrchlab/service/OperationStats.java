@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Throughput and latency of an operation, as recorded since the app started or the statistics were reset.
+ * Latencies are in microseconds.
+ */
+public final class OperationStats {
+
+    private final long count;
+    private final long failures;
+    private final double rate;
+    private final double mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long max;
+
+    /**
+     * Creates new operation statistics.
+     *
+     * @param count    number of completed operations
+     * @param failures number of failed operations
+     * @param rate     mean number of operations per second
+     * @param mean     mean latency
+     * @param p50      median latency
+     * @param p90      90th percentile of the latency
+     * @param p99      99th percentile of the latency
+     * @param max      maximum latency
+     */
+    public OperationStats(long count, long failures, double rate, double mean, long p50, long p90, long p99,
+                          long max) {
+        this.count = count;
+        this.failures = failures;
+        this.rate = rate;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long failures() {
+        return failures;
+    }
+
+    public double rate() {
+        return rate;
+    }
+
+    public double mean() {
+        return mean;
+    }
+
+    public long p50() {
+        return p50;
+    }
+
+    public long p90() {
+        return p90;
+    }
+
+    public long p99() {
+        return p99;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("count", count)
+                .add("failures", failures)
+                .add("rate", rate)
+                .add("p50", p50)
+                .add("p99", p99)
+                .toString();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Load of a switch port as measured by one of the port counter arrays.
+ */
+public final class PortLoad {
+
+    private final String counter;
+    private final int port;
+    private final double packetRate;
+    private final double byteRate;
+    private final double packetRateP50;
+    private final double packetRateP95;
+    private final double packetRateP99;
+
+    /**
+     * Creates a new port load.
+     *
+     * @param counter       counter array name
+     * @param port          port number
+     * @param packetRate    latest packet rate, in packets per second
+     * @param byteRate      latest byte rate, in bytes per second
+     * @param packetRateP50 median packet rate over the sampling window
+     * @param packetRateP95 95th percentile of the packet rate over the sampling window
+     * @param packetRateP99 99th percentile of the packet rate over the sampling window
+     */
+    public PortLoad(String counter, int port, double packetRate, double byteRate,
+                    double packetRateP50, double packetRateP95, double packetRateP99) {
+        this.counter = counter;
+        this.port = port;
+        this.packetRate = packetRate;
+        this.byteRate = byteRate;
+        this.packetRateP50 = packetRateP50;
+        this.packetRateP95 = packetRateP95;
+        this.packetRateP99 = packetRateP99;
+    }
+
+    public String counter() {
+        return counter;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public double packetRate() {
+        return packetRate;
+    }
+
+    public double byteRate() {
+        return byteRate;
+    }
+
+    public double packetRateP50() {
+        return packetRateP50;
+    }
+
+    public double packetRateP95() {
+        return packetRateP95;
+    }
+
+    public double packetRateP99() {
+        return packetRateP99;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("counter", counter)
+                .add("port", port)
+                .add("packetRate", packetRate)
+                .add("byteRate", byteRate)
+                .toString();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.onlab.packet.Ip4Prefix;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Collapses prefix bindings into covering prefixes, e.g. the 256 flows from the hosts of 10.0.1.0/24 to a server
+ * into a single binding of 10.0.1.0/24.
+ * <p>
+ * Two bindings are merged only when they differ by the source or the destination prefix alone and their
+ * prefixes are the two halves of a larger one, so the result covers exactly the same flows. Sources are
+ * collapsed first, then destinations.
+ */
+public final class PrefixAggregator {
+
+    private PrefixAggregator() {
+    }
+
+    /**
+     * Returns the smallest set of bindings covering exactly the given ones, found by merging sibling prefixes.
+     *
+     * @param bindings prefix bindings
+     * @return the aggregated bindings
+     */
+    public static List<PrefixBinding> aggregate(Collection<PrefixBinding> bindings) {
+        Set<PrefixBinding> unique = Sets.newLinkedHashSet(bindings);
+        List<PrefixBinding> bySource = collapse(unique, Dimension.SOURCE);
+        return ImmutableList.copyOf(collapse(bySource, Dimension.DESTINATION));
+    }
+
+    private static List<PrefixBinding> collapse(Collection<PrefixBinding> bindings, Dimension dimension) {
+        // Bindings only differing by the collapsed prefix.
+        ListMultimap<PrefixBinding, Ip4Prefix> groups = ArrayListMultimap.create();
+        for (PrefixBinding binding : bindings) {
+            groups.put(dimension.clear(binding), dimension.prefix.apply(binding));
+        }
+        List<PrefixBinding> result = Lists.newArrayList();
+        for (PrefixBinding group : groups.keySet()) {
+            for (Ip4Prefix prefix : merge(groups.get(group))) {
+                result.add(dimension.with(group, prefix));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges sibling prefixes into their parent, from the longest prefixes up, and drops the prefixes covered by
+     * another one.
+     */
+    static Set<Ip4Prefix> merge(Collection<Ip4Prefix> prefixes) {
+        List<Set<Ip4Prefix>> byLength = Lists.newArrayListWithCapacity(Ip4Prefix.MAX_MASK_LENGTH + 1);
+        for (int length = 0; length <= Ip4Prefix.MAX_MASK_LENGTH; length++) {
+            byLength.add(Sets.newHashSet());
+        }
+        prefixes.forEach(prefix -> byLength.get(prefix.prefixLength()).add(prefix));
+
+        for (int length = Ip4Prefix.MAX_MASK_LENGTH; length > 0; length--) {
+            Set<Ip4Prefix> level = byLength.get(length);
+            Set<Ip4Prefix> merged = Sets.newHashSet();
+            for (Ip4Prefix prefix : level) {
+                if (merged.contains(prefix)) {
+                    continue;
+                }
+                int address = prefix.address().toInt();
+                Ip4Prefix sibling = Ip4Prefix.valueOf(address ^ (1 << (Ip4Prefix.MAX_MASK_LENGTH - length)), length);
+                if (level.contains(sibling)) {
+                    merged.add(prefix);
+                    merged.add(sibling);
+                    byLength.get(length - 1).add(Ip4Prefix.valueOf(address, length - 1));
+                }
+            }
+            level.removeAll(merged);
+        }
+
+        Set<Ip4Prefix> result = Sets.newLinkedHashSet();
+        for (Set<Ip4Prefix> level : byLength) {
+            for (Ip4Prefix prefix : level) {
+                if (!isCovered(prefix, result)) {
+                    result.add(prefix);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isCovered(Ip4Prefix prefix, Set<Ip4Prefix> prefixes) {
+        int address = prefix.address().toInt();
+        for (int length = 0; length < prefix.prefixLength(); length++) {
+            if (prefixes.contains(Ip4Prefix.valueOf(address, length))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private enum Dimension {
+        SOURCE(PrefixBinding::srcPrefix) {
+            @Override
+            PrefixBinding with(PrefixBinding binding, Ip4Prefix prefix) {
+                return binding.withPrefixes(prefix, binding.dstPrefix());
+            }
+        },
+        DESTINATION(PrefixBinding::dstPrefix) {
+            @Override
+            PrefixBinding with(PrefixBinding binding, Ip4Prefix prefix) {
+                return binding.withPrefixes(binding.srcPrefix(), prefix);
+            }
+        };
+
+        private static final Ip4Prefix ANY = Ip4Prefix.valueOf(0, 0);
+
+        private final Function<PrefixBinding, Ip4Prefix> prefix;
+
+        Dimension(Function<PrefixBinding, Ip4Prefix> prefix) {
+            this.prefix = prefix;
+        }
+
+        abstract PrefixBinding with(PrefixBinding binding, Ip4Prefix prefix);
+
+        PrefixBinding clear(PrefixBinding binding) {
+            return with(binding, ANY);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.base.MoreObjects;
+import org.onlab.packet.Ip4Prefix;
+
+import java.util.Objects;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A request to bind all the flows between two IPv4 prefixes to a stateful service.
+ */
+public final class PrefixBinding {
+
+    /**
+     * Protocol matching any IP protocol.
+     */
+    public static final int ANY_PROTOCOL = -1;
+
+    private static final Ip4Prefix ANY = Ip4Prefix.valueOf(0, 0);
+    private static final int MAX_PROTOCOL = 0xff;
+
+    private final Ip4Prefix srcPrefix;
+    private final Ip4Prefix dstPrefix;
+    private final int protocol;
+    private final String outputPort;
+
+    /**
+     * Creates a new prefix binding request.
+     *
+     * @param srcPrefix  source prefix, or null for any source
+     * @param dstPrefix  destination prefix, or null for any destination
+     * @param protocol   IP protocol or {@link #ANY_PROTOCOL}
+     * @param outputPort an output port, or null to skip the prefix_forward_table entry
+     */
+    public PrefixBinding(Ip4Prefix srcPrefix, Ip4Prefix dstPrefix, int protocol, String outputPort) {
+        checkArgument(protocol == ANY_PROTOCOL || (protocol >= 0 && protocol <= MAX_PROTOCOL),
+                      "Invalid protocol %s", protocol);
+        this.srcPrefix = srcPrefix == null ? ANY : srcPrefix;
+        this.dstPrefix = dstPrefix == null ? ANY : dstPrefix;
+        this.protocol = protocol;
+        this.outputPort = outputPort;
+    }
+
+    public Ip4Prefix srcPrefix() {
+        return srcPrefix;
+    }
+
+    public Ip4Prefix dstPrefix() {
+        return dstPrefix;
+    }
+
+    public int protocol() {
+        return protocol;
+    }
+
+    public String outputPort() {
+        return outputPort;
+    }
+
+    /**
+     * Returns true if this binding stands for a single flow, i.e. matches full addresses and a protocol.
+     *
+     * @return a boolean value
+     */
+    public boolean isExact() {
+        return srcPrefix.prefixLength() == Ip4Prefix.MAX_MASK_LENGTH &&
+                dstPrefix.prefixLength() == Ip4Prefix.MAX_MASK_LENGTH && protocol != ANY_PROTOCOL;
+    }
+
+    /**
+     * Returns a copy of this binding with the given prefixes.
+     *
+     * @param src source prefix
+     * @param dst destination prefix
+     * @return a new binding request
+     */
+    public PrefixBinding withPrefixes(Ip4Prefix src, Ip4Prefix dst) {
+        return new PrefixBinding(src, dst, protocol, outputPort);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(srcPrefix, dstPrefix, protocol, outputPort);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PrefixBinding)) {
+            return false;
+        }
+        PrefixBinding other = (PrefixBinding) obj;
+        return protocol == other.protocol && srcPrefix.equals(other.srcPrefix) &&
+                dstPrefix.equals(other.dstPrefix) && Objects.equals(outputPort, other.outputPort);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("srcPrefix", srcPrefix)
+                .add("dstPrefix", dstPrefix)
+                .add("protocol", protocol)
+                .add("outputPort", outputPort)
+                .toString();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Ordered task queues, one per key, drained by a shared pool of workers.
+ * <p>
+ * Tasks of the same key run one at a time in submission order, tasks of different keys run in parallel. A queue
+ * holds at most one task on the pool at any time and gives the worker back after each task, so a busy key
+ * cannot starve the others. Queues have a bounded depth, tasks submitted to a full queue are rejected.
+ *
+ * @param <K> type of the keys
+ */
+public final class SerialTaskQueues<K> {
+
+    private final Logger log = getLogger(getClass());
+
+    private final Executor workers;
+    private final int maxDepth;
+    private final OperationMetrics.Timer waits;
+    private final ConcurrentMap<K, TaskQueue> queues = Maps.newConcurrentMap();
+
+    /**
+     * Creates new task queues.
+     *
+     * @param workers  executor running the tasks
+     * @param maxDepth maximum number of pending tasks per key
+     */
+    public SerialTaskQueues(Executor workers, int maxDepth) {
+        this(workers, maxDepth, null);
+    }
+
+    /**
+     * Creates new task queues reporting the time spent in the queues by tasks.
+     *
+     * @param workers  executor running the tasks
+     * @param maxDepth maximum number of pending tasks per key
+     * @param waits    timer of the waits of all the queues, or null
+     */
+    public SerialTaskQueues(Executor workers, int maxDepth, OperationMetrics.Timer waits) {
+        checkArgument(maxDepth > 0, "maxDepth must be positive");
+        this.workers = checkNotNull(workers);
+        this.maxDepth = maxDepth;
+        this.waits = waits;
+    }
+
+    /**
+     * Submits a task to the queue of the given key.
+     *
+     * @param key  a key
+     * @param task a task
+     * @return true if the task was queued, false if the queue is full
+     */
+    public boolean execute(K key, Runnable task) {
+        return queues.computeIfAbsent(key, k -> new TaskQueue()).offer(task);
+    }
+
+    /**
+     * Returns the number of pending tasks of the given key, excluding the running one.
+     *
+     * @param key a key
+     * @return a queue depth
+     */
+    public int depth(K key) {
+        TaskQueue queue = queues.get(key);
+        return queue == null ? 0 : queue.depth.get();
+    }
+
+    /**
+     * Returns the statistics of each queue.
+     *
+     * @return statistics by key
+     */
+    public Map<K, TaskQueueStats> stats() {
+        ImmutableMap.Builder<K, TaskQueueStats> builder = ImmutableMap.builder();
+        queues.forEach((key, queue) -> builder.put(key, queue.stats()));
+        return builder.build();
+    }
+
+    /**
+     * Discards the pending tasks of the given key and resets its statistics. The queue itself is kept, so that a
+     * task of the key still running completes before any task submitted afterwards starts.
+     *
+     * @param key a key
+     */
+    public void clear(K key) {
+        TaskQueue queue = queues.get(key);
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    private final class TaskQueue {
+        private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        // true while a drain of this queue is on the pool
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final LongAdder executed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder totalWait = new LongAdder();
+        private final AtomicLong maxWait = new AtomicLong();
+
+        private boolean offer(Runnable task) {
+            if (depth.incrementAndGet() > maxDepth) {
+                depth.decrementAndGet();
+                rejected.increment();
+                return false;
+            }
+            tasks.add(new Task(task));
+            schedule();
+            return true;
+        }
+
+        private void schedule() {
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                try {
+                    workers.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        private void drain() {
+            Task task = tasks.poll();
+            if (task != null) {
+                depth.decrementAndGet();
+                long wait = System.nanoTime() - task.queued;
+                totalWait.add(wait);
+                maxWait.accumulateAndGet(wait, Math::max);
+                if (waits != null) {
+                    waits.stop(task.queued);
+                }
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException e) {
+                    log.warn("Exception in queued task: {}", e.toString());
+                } finally {
+                    executed.increment();
+                }
+            }
+            scheduled.set(false);
+            // Tasks added while running found the queue scheduled.
+            schedule();
+        }
+
+        private void clear() {
+            while (tasks.poll() != null) {
+                depth.decrementAndGet();
+            }
+            executed.reset();
+            rejected.reset();
+            totalWait.reset();
+            maxWait.set(0);
+        }
+
+        private TaskQueueStats stats() {
+            long count = executed.sum();
+            return new TaskQueueStats(depth.get(), count, rejected.sum(),
+                                      count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWait.sum() / count),
+                                      TimeUnit.NANOSECONDS.toMicros(maxWait.get()));
+        }
+    }
+
+    private static final class Task {
+        private final Runnable runnable;
+        private final long queued = System.nanoTime();
+
+        private Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.base.MoreObjects;
+import org.onosproject.net.DeviceId;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The state_register cells of a device that changed between two consecutive snapshots.
+ */
+public final class StateDelta {
+
+    private final DeviceId deviceId;
+    private final int[] indices;
+    private final byte[] previous;
+    private final byte[] current;
+
+    private StateDelta(DeviceId deviceId, int[] indices, byte[] previous, byte[] current) {
+        this.deviceId = deviceId;
+        this.indices = indices;
+        this.previous = previous;
+        this.current = current;
+    }
+
+    /**
+     * Computes the delta between two snapshots of the same register array. A null previous snapshot is
+     * treated as all zeroes.
+     *
+     * @param deviceId a device id
+     * @param before   previous snapshot, or null
+     * @param after    current snapshot
+     * @return a delta
+     */
+    public static StateDelta between(DeviceId deviceId, byte[] before, byte[] after) {
+        checkNotNull(after);
+        checkArgument(before == null || before.length == after.length, "snapshot size mismatch");
+        int count = 0;
+        int[] indices = new int[after.length];
+        for (int i = 0; i < after.length; i++) {
+            byte old = before == null ? 0 : before[i];
+            if (old != after[i]) {
+                indices[count++] = i;
+            }
+        }
+        indices = Arrays.copyOf(indices, count);
+        byte[] previous = new byte[count];
+        byte[] current = new byte[count];
+        for (int i = 0; i < count; i++) {
+            previous[i] = before == null ? 0 : before[indices[i]];
+            current[i] = after[indices[i]];
+        }
+        return new StateDelta(deviceId, indices, previous, current);
+    }
+
+    public DeviceId deviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Returns the number of changed cells.
+     *
+     * @return an integer
+     */
+    public int size() {
+        return indices.length;
+    }
+
+    public boolean isEmpty() {
+        return indices.length == 0;
+    }
+
+    /**
+     * Returns the register index of the i-th changed cell.
+     *
+     * @param i position in this delta
+     * @return a register index
+     */
+    public int index(int i) {
+        return indices[i];
+    }
+
+    /**
+     * Returns the value of the i-th changed cell in the previous snapshot.
+     *
+     * @param i position in this delta
+     * @return a state value
+     */
+    public byte previous(int i) {
+        return previous[i];
+    }
+
+    /**
+     * Returns the value of the i-th changed cell in the current snapshot.
+     *
+     * @param i position in this delta
+     * @return a state value
+     */
+    public byte current(int i) {
+        return current[i];
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("deviceId", deviceId)
+                .add("size", indices.length)
+                .toString();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.base.MoreObjects;
+import org.onosproject.net.flow.TrafficSelector;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A request to bind a traffic selector to a stateful service, as used by bulk binds.
+ */
+public final class StatefulBinding {
+
+    private final TrafficSelector selector;
+    private final int registerId;
+    private final String outputPort;
+
+    /**
+     * Creates a new binding request.
+     *
+     * @param selector   a traffic selector
+     * @param registerId a slot of the service region, {@link StatefulP4Service#ANY_REGISTER}
+     *                   or {@link StatefulP4Service#HASHED_REGISTER}
+     * @param outputPort an output port, or null to skip the forward_table entry
+     */
+    public StatefulBinding(TrafficSelector selector, int registerId, String outputPort) {
+        this.selector = checkNotNull(selector);
+        this.registerId = registerId;
+        this.outputPort = outputPort;
+    }
+
+    public TrafficSelector selector() {
+        return selector;
+    }
+
+    public int registerId() {
+        return registerId;
+    }
+
+    public String outputPort() {
+        return outputPort;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("selector", selector)
+                .add("registerId", registerId)
+                .add("outputPort", outputPort)
+                .toString();
+    }
+}
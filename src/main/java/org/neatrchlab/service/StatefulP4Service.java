@@ -3,13 +3,228 @@ package org.neatrchlab.service;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.flow.TrafficSelector;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
 /**
  * Created by ubuntu on 16-11-17.
  */
 public interface StatefulP4Service {
 
+    /**
+     * Register id to pass to {@link #bindService} to let the service place the flow in its region of
+     * state_register by hashing its 5-tuple. Explicit register ids are offsets in that region, so that services
+     * never share slots.
+     */
+    int ANY_REGISTER = -1;
+
+    /**
+     * Register id to pass to {@link #bindService} to bind a wildcard selector in hash mode: the data plane
+     * indexes a second region of the service by a hash of the 5-tuple of each packet, so that new flows matching
+     * the selector get a state without any further rule. The selector must use ternary matches, and the flows it
+     * covers share that region, possibly colliding on a slot. Exact bindings of the service keep their own
+     * region, so both kinds of bindings can be mixed.
+     */
+    int HASHED_REGISTER = -2;
+
+    public int loadService(String path);
     public int startService(String service);
+
+    /**
+     * Creates a new instance of the given service, e.g. one firewall per tenant. The instance runs the same FSM
+     * with its own target_id, so its flows and states are isolated from those of the other instances.
+     *
+     * @param service a service name
+     * @param name    name of the new instance
+     * @return 0 on success, 1 if the service is unknown, the name is taken or no target_id is left
+     */
+    public int createService(String service, String name);
+
+    /**
+     * Removes a service that is not running on any device, freeing its target_id.
+     *
+     * @param name a service name
+     * @return 0 on success, 1 if the service is unknown or still running
+     */
+    public int removeService(String name);
+
+    /**
+     * Returns the known services.
+     *
+     * @return a map from service name to target_id
+     */
+    public Map<String, Integer> getServices();
     public int stopService(String service);
     public DeviceId getDefaultDeviceId();
     public int bindService(String service, int registerId, TrafficSelector trafficSelector, String outputPort);
+
+    /**
+     * Starts the given service on the given devices in parallel.
+     *
+     * @param service a service name
+     * @param devices device ids, or an empty collection for all available devices
+     * @return the result of each device, 0 on success
+     */
+    public Map<DeviceId, Integer> startService(String service, Collection<DeviceId> devices);
+
+    /**
+     * Stops the given service on the given devices in parallel.
+     *
+     * @param service a service name
+     * @param devices device ids, or an empty collection for all available devices
+     * @return the result of each device, 0 on success
+     */
+    public Map<DeviceId, Integer> stopService(String service, Collection<DeviceId> devices);
+
+    /**
+     * Binds the given selector to the given service on the given devices in parallel. Register slots are
+     * allocated independently on each device.
+     *
+     * @param service         a service name
+     * @param registerId      a slot of the service region, {@link #ANY_REGISTER} or {@link #HASHED_REGISTER}
+     * @param trafficSelector a traffic selector
+     * @param outputPort      an output port, or null to skip the forward_table entry
+     * @param devices         device ids, or an empty collection for all available devices
+     * @return the result of each device, 0 on success
+     */
+    public Map<DeviceId, Integer> bindService(String service, int registerId, TrafficSelector trafficSelector,
+                                              String outputPort, Collection<DeviceId> devices);
+
+    /**
+     * Starts the given service on the given device.
+     *
+     * @param service  a service name
+     * @param deviceId a device id
+     * @return a future completed with 0 once the device confirms all the rules, 1 on failure
+     */
+    public CompletableFuture<Integer> startServiceAsync(String service, DeviceId deviceId);
+
+    /**
+     * Stops the given service on the given device.
+     *
+     * @param service  a service name
+     * @param deviceId a device id
+     * @return a future completed with 0 once the device confirms the removal of all the rules, 1 on failure
+     */
+    public CompletableFuture<Integer> stopServiceAsync(String service, DeviceId deviceId);
+
+    /**
+     * Binds the given selector to the given service on the given device. The binding is rolled back if the
+     * device rejects its rules.
+     *
+     * @param service         a service name
+     * @param registerId      a slot of the service region, {@link #ANY_REGISTER} or {@link #HASHED_REGISTER}
+     * @param trafficSelector a traffic selector
+     * @param outputPort      an output port, or null to skip the forward_table entry
+     * @param deviceId        a device id
+     * @return a future completed with 0 once the device confirms all the rules, 1 on failure
+     */
+    public CompletableFuture<Integer> bindServiceAsync(String service, int registerId,
+                                                       TrafficSelector trafficSelector, String outputPort,
+                                                       DeviceId deviceId);
+
+    /**
+     * Returns the latest snapshot of the state_register of the given device.
+     *
+     * @param deviceId a device id
+     * @return register values, or null if not polled yet
+     */
+    public byte[] getStateSnapshot(DeviceId deviceId);
+
+    /**
+     * Returns how many flows bound to the given service are in each of its states, as of the latest snapshot.
+     *
+     * @param service  a service name
+     * @param deviceId a device id
+     * @return a map from state name to number of flows
+     */
+    public Map<String, Long> getStateHistogram(String service, DeviceId deviceId);
+
+    /**
+     * Adds a listener of state_register changes.
+     *
+     * @param listener a state listener
+     */
+    public void addStateListener(StateListener listener);
+
+    /**
+     * Removes a listener of state_register changes.
+     *
+     * @param listener a state listener
+     */
+    public void removeStateListener(StateListener listener);
+
+    /**
+     * Returns the load of the ports of the given device, as measured by the port counter arrays.
+     *
+     * @param deviceId a device id
+     * @return the load of each port that showed some traffic
+     */
+    public List<PortLoad> getPortLoad(DeviceId deviceId);
+
+    /**
+     * Returns the statistics of the task queue of each device, where deploys and rule updates are serialized.
+     *
+     * @return queue statistics by device id
+     */
+    public Map<DeviceId, TaskQueueStats> getDeviceQueueStats();
+
+    /**
+     * Returns the throughput and latency of the hot paths of the app, e.g. startService, bindService until the
+     * device confirms the rules, installFlowRules, deployDevice and generateFlowRules.
+     *
+     * @return statistics by operation name
+     */
+    public Map<String, OperationStats> getOperationStats();
+
+    /**
+     * Resets the statistics returned by {@link #getOperationStats}.
+     */
+    public void resetOperationStats();
+
+    public int unbindService(String service, TrafficSelector trafficSelector);
+
+    /**
+     * Binds all the flows between two prefixes to the given service with a single hash_state_table entry, in
+     * hash mode, plus a prefix_forward_table entry if an output port is given. The most specific prefixes take
+     * precedence. A binding of a single flow goes to state_table and forward_table instead.
+     *
+     * @param service a service name
+     * @param binding a prefix binding
+     * @return 0 once the device confirms the rules, 1 on failure
+     */
+    public int bindPrefix(String service, PrefixBinding binding);
+
+    /**
+     * Removes a binding made by {@link #bindPrefix}.
+     *
+     * @param service a service name
+     * @param binding a prefix binding
+     * @return 0 on success, 1 if no such binding exists
+     */
+    public int unbindPrefix(String service, PrefixBinding binding);
+
+    /**
+     * Binds the given flows or prefixes to the given service, after collapsing those filling whole prefixes into
+     * covering prefix bindings, see {@link PrefixAggregator}.
+     *
+     * @param service  a service name
+     * @param bindings prefix bindings
+     * @return the number of failed bindings after aggregation, or -1 if the service is unknown
+     */
+    public int bindAggregated(String service, Collection<PrefixBinding> bindings);
+
+    /**
+     * Binds a stream of selectors to the given service, installing rules in large batches. The stream is
+     * consumed lazily, so it can be backed by a file of any size. If the stream fails, the bindings read so far
+     * are still installed before the exception is rethrown.
+     *
+     * @param service  a service name
+     * @param bindings a stream of binding requests
+     * @return the number of failed bindings, or -1 if the service is unknown
+     */
+    public int bindServices(String service, Stream<StatefulBinding> bindings);
 }
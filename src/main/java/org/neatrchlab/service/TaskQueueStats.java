@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Statistics of a serial task queue.
+ */
+public final class TaskQueueStats {
+
+    private final int depth;
+    private final long executed;
+    private final long rejected;
+    private final long meanWait;
+    private final long maxWait;
+
+    /**
+     * Creates new task queue statistics.
+     *
+     * @param depth    number of pending tasks
+     * @param executed number of tasks executed so far
+     * @param rejected number of tasks rejected because the queue was full
+     * @param meanWait mean time spent in the queue by executed tasks, in microseconds
+     * @param maxWait  maximum time spent in the queue by executed tasks, in microseconds
+     */
+    public TaskQueueStats(int depth, long executed, long rejected, long meanWait, long maxWait) {
+        this.depth = depth;
+        this.executed = executed;
+        this.rejected = rejected;
+        this.meanWait = meanWait;
+        this.maxWait = maxWait;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    public long executed() {
+        return executed;
+    }
+
+    public long rejected() {
+        return rejected;
+    }
+
+    public long meanWait() {
+        return meanWait;
+    }
+
+    public long maxWait() {
+        return maxWait;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("depth", depth)
+                .add("executed", executed)
+                .add("rejected", rejected)
+                .add("meanWait", meanWait)
+                .add("maxWait", maxWait)
+                .toString();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the port counter time series.
+ */
+public class PortTimeSeriesTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void ratesAndWrapAround() {
+        PortTimeSeries series = new PortTimeSeries(3);
+        assertEquals(0, series.packetRate(), DELTA);
+
+        series.add(0, 0, 0);
+        series.add(1000, 10, 1000);
+        series.add(2000, 30, 3000);
+        series.add(3000, 60, 6000);
+        assertEquals(3, series.size());
+        assertEquals(30, series.packetRate(), DELTA);
+        assertEquals(3000, series.byteRate(), DELTA);
+        // The oldest sample was overwritten, rates are now 20 and 30.
+        assertEquals(20, series.packetRatePercentile(50), DELTA);
+        assertEquals(30, series.packetRatePercentile(99), DELTA);
+    }
+
+    @Test
+    public void counterReset() {
+        PortTimeSeries series = new PortTimeSeries(4);
+        series.add(0, 100, 1000);
+        series.add(1000, 5, 50);
+        assertEquals(0, series.packetRate(), DELTA);
+        assertEquals(0, series.byteRate(), DELTA);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import org.junit.Test;
+import org.neatrchlab.service.PrefixAggregator;
+import org.neatrchlab.service.PrefixBinding;
+import org.onlab.packet.Ip4Prefix;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the register regions.
+ */
+public class RegisterRegionsTest {
+
+    @Test
+    public void regionsDoNotOverlap() {
+        RegisterRegions regions = new RegisterRegions(1024);
+        RegisterRegions.Region fw = regions.reserve(1, 256);
+        RegisterRegions.Region lb = regions.reserve(2, 256);
+        assertSame(fw, regions.reserve(1, 512));
+        assertEquals(0, fw.base());
+        assertEquals(256, lb.base());
+        assertEquals(512, regions.unreserved());
+        assertNull(regions.reserve(3, 1024));
+        for (int i = 0; i < 256; i++) {
+            assertTrue(fw.contains(fw.place(i + 1)));
+        }
+        assertEquals(RegisterSlotAllocator.NONE, fw.place(257));
+        assertEquals(0, lb.used());
+    }
+
+    @Test
+    public void sameFlowSharesItsSlot() {
+        RegisterRegions.Region region = new RegisterRegions(64).reserve(1, 64);
+        int slot = region.place(42);
+        assertEquals(slot, region.place(42));
+        assertEquals(1, region.used());
+        assertFalse(region.release(slot));
+        assertTrue(region.release(slot));
+        assertEquals(0, region.used());
+    }
+
+    @Test
+    public void concurrentPlacementsShareTheirSlot() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int round = 0; round < 200; round++) {
+            RegisterRegions.Region region = new RegisterRegions(64).reserve(1, 64);
+            // A flow leaving the slot the next ones are hashed to.
+            int previous = region.place(5);
+            Set<Integer> slots = ConcurrentHashMap.newKeySet();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> placements = Lists.newArrayList();
+            placements.add(executor.submit(() -> {
+                start.await();
+                return region.release(previous);
+            }));
+            for (int i = 0; i < 16; i++) {
+                placements.add(executor.submit(() -> {
+                    start.await();
+                    return slots.add(region.place(5 + 64));
+                }));
+            }
+            start.countDown();
+            for (Future<?> placement : placements) {
+                Futures.getUnchecked(placement);
+            }
+            assertEquals(1, slots.size());
+            int slot = slots.iterator().next();
+            assertEquals(16, region.references(slot));
+            // The hash of the flow survived the release of the previous one.
+            assertEquals(slot, region.place(5 + 64));
+            assertEquals(1, region.used());
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void collisionsAreProbed() {
+        RegisterRegions.Region region = new RegisterRegions(64).reserve(1, 64);
+        int first = region.place(3);
+        int second = region.place(3 + 64);
+        assertNotEquals(first, second);
+        assertEquals(1, region.collisions());
+        region.release(first);
+        // The slot of a released flow is free for other flows.
+        assertEquals(first, region.place(3 + 128));
+    }
+
+    @Test
+    public void freedRegionsAreMerged() {
+        RegisterRegions regions = new RegisterRegions(1024);
+        regions.reserve(1, 256);
+        RegisterRegions.Region lb = regions.reserve(2, 256);
+        regions.reserve(3, 512);
+        int slot = lb.place(1);
+        assertFalse(regions.free(2));
+        lb.release(slot);
+        assertTrue(regions.free(2));
+        assertTrue(regions.free(1));
+        assertEquals(512, regions.reserve(4, 512).size());
+        assertEquals(0, regions.region(4).base());
+    }
+
+    @Test
+    public void hashedRegionIsSeparate() {
+        RegisterRegions regions = new RegisterRegions(1024);
+        RegisterRegions.Region exact = regions.reserve(1, 256);
+        RegisterRegions.Region hashed = regions.reserveHashed(1, 256);
+        assertNotSame(exact, hashed);
+        assertSame(hashed, regions.hashedRegion(1));
+        assertEquals(512, regions.unreserved());
+
+        // A wildcard binding pins the whole hashed region, exact flows are still placed.
+        assertTrue(hashed.pin());
+        int slot = exact.place(1);
+        assertTrue(exact.contains(slot));
+        assertSame(exact, regions.region(1, slot));
+        assertSame(hashed, regions.region(1, hashed.base()));
+        assertNull(regions.region(1, 1000));
+
+        // Freed along with the exact region once unused.
+        exact.release(slot);
+        assertFalse(regions.free(1));
+        assertNull(regions.region(1));
+        assertTrue(hashed.unpin());
+        assertTrue(regions.free(1));
+        assertEquals(1024, regions.unreserved());
+    }
+
+    @Test
+    public void pinnedRegionIsReleasedAsOneUnit() {
+        RegisterRegions regions = new RegisterRegions(1024);
+        RegisterRegions.Region hashed = regions.reserveHashed(1, 256);
+        assertTrue(hashed.pin());
+        assertFalse(hashed.pin());
+        assertEquals(256, hashed.used());
+        assertEquals(2, hashed.pins());
+
+        assertFalse(hashed.unpin());
+        assertFalse(regions.free(1));
+        assertTrue(hashed.unpin());
+        assertEquals(0, hashed.used());
+        assertTrue(regions.free(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unpinnedRegionCannotBeReleased() {
+        new RegisterRegions(64).reserveHashed(1, 64).unpin();
+    }
+
+    @Test
+    public void aggregatedFlowsArePlacedNextToPrefixes() {
+        // A whole /24 of sources plus two single flows, as bound by bindAggregated.
+        List<PrefixBinding> bindings = Lists.newArrayList();
+        for (int host = 0; host < 256; host++) {
+            bindings.add(flow("10.0.1." + host, "10.0.0.1"));
+        }
+        bindings.add(flow("10.0.2.1", "10.0.0.1"));
+        bindings.add(flow("10.0.3.1", "10.0.0.1"));
+        List<PrefixBinding> aggregated = PrefixAggregator.aggregate(bindings);
+        assertEquals(3, aggregated.size());
+
+        RegisterRegions regions = new RegisterRegions(1024);
+        Set<Integer> slots = Sets.newHashSet();
+        for (PrefixBinding binding : aggregated) {
+            if (binding.isExact()) {
+                RegisterRegions.Region region = regions.reserve(1, 256);
+                slots.add(region.place(binding.hashCode()));
+            } else {
+                regions.reserveHashed(1, 256).pin();
+            }
+        }
+        assertEquals(2, slots.size());
+        assertFalse(slots.contains(RegisterSlotAllocator.NONE));
+        assertTrue(slots.stream().allMatch(slot -> regions.region(1).contains(slot)));
+    }
+
+    private static PrefixBinding flow(String src, String dst) {
+        return new PrefixBinding(Ip4Prefix.valueOf(src + "/32"), Ip4Prefix.valueOf(dst + "/32"), 6, null);
+    }
+}
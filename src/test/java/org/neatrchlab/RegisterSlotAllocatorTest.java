@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the register slot allocator.
+ */
+public class RegisterSlotAllocatorTest {
+
+    @Test
+    public void exhaustionAndReuse() {
+        RegisterSlotAllocator allocator = new RegisterSlotAllocator(70);
+        for (int i = 0; i < 70; i++) {
+            assertTrue(allocator.allocate() >= 0);
+        }
+        assertEquals(RegisterSlotAllocator.NONE, allocator.allocate());
+        assertEquals(0, allocator.available());
+
+        assertTrue(allocator.release(42));
+        assertEquals(42, allocator.allocate());
+        assertEquals(RegisterSlotAllocator.NONE, allocator.allocate());
+    }
+
+    @Test
+    public void sharedSlots() {
+        RegisterSlotAllocator allocator = new RegisterSlotAllocator(8);
+        allocator.retain(3);
+        allocator.retain(3);
+        assertEquals(7, allocator.available());
+        assertEquals(2, allocator.references(3));
+
+        assertFalse(allocator.release(3));
+        assertTrue(allocator.isAllocated(3));
+        assertEquals(1, allocator.references(3));
+        assertTrue(allocator.release(3));
+        assertFalse(allocator.isAllocated(3));
+        assertEquals(0, allocator.references(3));
+        assertFalse(allocator.release(3));
+        assertEquals(8, allocator.available());
+    }
+
+    @Test
+    public void concurrentAllocations() throws InterruptedException {
+        RegisterSlotAllocator allocator = new RegisterSlotAllocator(1024);
+        Set<Integer> slots = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 2048; i++) {
+            executor.execute(() -> {
+                int slot = allocator.allocate();
+                if (slot != RegisterSlotAllocator.NONE) {
+                    assertTrue(slots.add(slot));
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1024, slots.size());
+        assertEquals(0, allocator.available());
+    }
+}
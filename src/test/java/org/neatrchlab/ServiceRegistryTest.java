@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.eclipsesource.json.Json;
+import com.google.common.collect.Sets;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.bmv2.api.context.Bmv2DefaultConfiguration;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the allocation of target ids by the service registry.
+ */
+public class ServiceRegistryTest {
+
+    private static final String FSM = "{\"name\": \"%s\", \"targetId\": %d, " +
+            "\"extractor\": \"get_state_with_tcp_flag\", \"states\": {\"INIT\": 0}, " +
+            "\"actions\": [{\"state\": \"INIT\"}]}";
+
+    private ServiceRegistry registry;
+
+    @Before
+    public void setUp() throws IOException {
+        try (Reader reader = new InputStreamReader(getClass().getResourceAsStream("/stateful.json"))) {
+            registry = new ServiceRegistry(Bmv2DefaultConfiguration.parse(Json.parse(reader).asObject()));
+        }
+    }
+
+    private static StatefulFsm fsm(String name, int targetId) {
+        return StatefulFsm.parse(Json.parse(String.format(FSM, name, targetId)).asObject());
+    }
+
+    private int register(String name, int targetId) {
+        return registry.register(fsm(name, targetId)).fsm().targetId();
+    }
+
+    @Test
+    public void allocatesSixteenBitsButZero() {
+        assertEquals(StatefulFsm.MAX_TARGET_ID, registry.availableTargetIds());
+        Set<Integer> targetIds = Sets.newHashSet(register("fw", 0));
+        for (int i = 1; i < StatefulFsm.MAX_TARGET_ID; i++) {
+            targetIds.add(registry.instantiate("fw", "fw-" + i).fsm().targetId());
+        }
+        assertEquals(StatefulFsm.MAX_TARGET_ID, targetIds.size());
+        assertTrue(targetIds.stream().allMatch(id -> id >= 1 && id <= StatefulFsm.MAX_TARGET_ID));
+        assertEquals(0, registry.availableTargetIds());
+        try {
+            registry.instantiate("fw", "fw-full");
+            fail("target ids are exhausted");
+        } catch (IllegalArgumentException e) {
+            assertNull(registry.get("fw-full"));
+        }
+    }
+
+    @Test
+    public void conflictingTargetId() {
+        register("fw", 5);
+        try {
+            register("lb", 5);
+            fail("target id 5 is used by fw");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("fw"));
+        }
+        assertNull(registry.get("lb"));
+        assertEquals(StatefulFsm.MAX_TARGET_ID - 1, registry.availableTargetIds());
+    }
+
+    @Test
+    public void reRegisterKeepsTargetId() {
+        int targetId = register("fw", 0);
+        assertEquals(targetId, register("fw", 0));
+        assertEquals(targetId, register("fw", targetId));
+        assertEquals(StatefulFsm.MAX_TARGET_ID - 1, registry.availableTargetIds());
+
+        // An explicit target id moves the service, freeing the previous one.
+        int moved = targetId == 42 ? 43 : 42;
+        assertEquals(moved, register("fw", moved));
+        assertEquals(targetId, register("lb", targetId));
+    }
+
+    @Test
+    public void unregisterFreesTargetId() {
+        int targetId = register("fw", 0);
+        int instanceId = registry.instantiate("fw", "fw-tenant1").fsm().targetId();
+        assertNotEquals(targetId, instanceId);
+        assertEquals(StatefulFsm.MAX_TARGET_ID - 2, registry.availableTargetIds());
+
+        assertEquals(instanceId, registry.unregister("fw-tenant1").fsm().targetId());
+        assertNull(registry.unregister("fw-tenant1"));
+        assertEquals(StatefulFsm.MAX_TARGET_ID - 1, registry.availableTargetIds());
+        assertEquals(instanceId, register("lb", instanceId));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void instanceNameTaken() {
+        register("fw", 0);
+        register("lb", 0);
+        registry.instantiate("fw", "lb");
+    }
+}
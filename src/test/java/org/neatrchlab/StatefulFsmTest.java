@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.eclipsesource.json.Json;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the target id and register quota of FSM definitions and their instances.
+ */
+public class StatefulFsmTest {
+
+    private static final String FSM = "{\"name\": \"fw\", \"extractor\": \"get_state_with_tcp_flag\", " +
+            "\"states\": {\"INIT\": 0}, \"actions\": [{\"state\": \"INIT\"}]}";
+
+    private static StatefulFsm parse(String json) {
+        return StatefulFsm.parse(Json.parse(json).asObject());
+    }
+
+    @Test
+    public void targetIdDefaultsToZero() {
+        // Left to the service registry to allocate.
+        assertEquals(0, parse(FSM).targetId());
+    }
+
+    @Test
+    public void instanceKeepsTheFsm() {
+        StatefulFsm fsm = parse(FSM);
+        StatefulFsm instance = fsm.instance("fw-tenant1", StatefulFsm.MAX_TARGET_ID);
+        assertEquals("fw-tenant1", instance.name());
+        assertEquals(StatefulFsm.MAX_TARGET_ID, instance.targetId());
+        assertEquals(fsm.extractor(), instance.extractor());
+        assertEquals(fsm.states(), instance.states());
+        assertEquals(fsm.actions(), instance.actions());
+    }
+
+    @Test
+    public void targetIdCoversSixteenBits() {
+        StatefulFsm fsm = parse(FSM.replace("{\"name\"", "{\"targetId\": 65535, \"name\""));
+        assertEquals(StatefulFsm.MAX_TARGET_ID, fsm.targetId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void targetIdOutOfRange() {
+        parse(FSM.replace("{\"name\"", "{\"targetId\": 65536, \"name\""));
+    }
+
+    @Test
+    public void registerQuotaIsKeptByInstances() {
+        assertEquals(0, parse(FSM).registerQuota());
+        StatefulFsm fsm = parse(FSM.replace("{\"name\"", "{\"registerQuota\": 32, \"name\""));
+        assertEquals(32, fsm.registerQuota());
+        assertEquals(32, fsm.instance("fw-tenant1", 2).registerQuota());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeRegisterQuota() {
+        parse(FSM.replace("{\"name\"", "{\"registerQuota\": -1, \"name\""));
+    }
+}
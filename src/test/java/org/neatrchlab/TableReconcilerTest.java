@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.eclipsesource.json.Json;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.context.Bmv2DefaultConfiguration;
+import org.onosproject.bmv2.api.runtime.Bmv2Action;
+import org.onosproject.bmv2.api.runtime.Bmv2ExactMatchParam;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionSelector;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionTreatment;
+import org.onosproject.bmv2.api.runtime.Bmv2MatchKey;
+import org.onosproject.bmv2.api.runtime.Bmv2ParsedTableEntry;
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the table reconciler, against a fake device.
+ */
+public class TableReconcilerTest {
+
+    private static final DeviceId DEVICE = DeviceId.deviceId("bmv2:127.0.0.1:40123#1");
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "org.neatrchlab.test");
+    private static final StatefulP4Interpreter INTERPRETER = new StatefulP4Interpreter();
+    private static final String TABLE = StatefulP4Interpreter.STATE_TABLE;
+    private static final String ACTION = "get_state_with_tcp_flag";
+    private static final int TARGET_ID = 1;
+
+    private FakeTableAccess device;
+    private TableReconciler reconciler;
+
+    @Before
+    public void setUp() throws IOException {
+        Bmv2Configuration configuration;
+        try (Reader reader = new InputStreamReader(getClass().getResourceAsStream("/stateful.json"))) {
+            configuration = Bmv2DefaultConfiguration.parse(Json.parse(reader).asObject());
+        }
+        device = new FakeTableAccess();
+        reconciler = new TableReconciler(device, configuration, INTERPRETER,
+                                         Collections.singleton(TABLE));
+    }
+
+    private static FlowRule rule(int host, int registerId) {
+        Bmv2ExtensionSelector selector = Bmv2ExtensionSelector.builder()
+                .matchExact("ipv4", "dstAddr", address(host))
+                .matchExact("ipv4", "srcAddr", address(1))
+                .matchExact("ipv4", "protocol", new byte[]{6})
+                .build();
+        Bmv2ExtensionTreatment treatment = Bmv2ExtensionTreatment.builder()
+                .setActionName(ACTION)
+                .addParameter(StatefulP4Interpreter.TARGET_ID, (short) TARGET_ID)
+                .addParameter(StatefulP4Interpreter.REGISTER_ID, registerId)
+                .build();
+        return DefaultFlowRule.builder()
+                .forDevice(DEVICE)
+                .forTable(INTERPRETER.tableIdMap().inverse().get(TABLE))
+                .withSelector(DefaultTrafficSelector.builder().extension(selector, DEVICE).build())
+                .withTreatment(DefaultTrafficTreatment.builder().extension(treatment, DEVICE).build())
+                .withPriority(100)
+                .fromApp(APP_ID)
+                .makePermanent()
+                .build();
+    }
+
+    /**
+     * Returns the entry the device reports for the rule of the given host, with values fitted to the width of
+     * their field as BMv2 does.
+     */
+    private static Bmv2ParsedTableEntry entry(long entryId, int host, int registerId) {
+        Bmv2MatchKey key = Bmv2MatchKey.builder()
+                .add(new Bmv2ExactMatchParam(ImmutableByteSequence.copyFrom(address(host))))
+                .add(new Bmv2ExactMatchParam(ImmutableByteSequence.copyFrom(address(1))))
+                .add(new Bmv2ExactMatchParam(ImmutableByteSequence.copyFrom((byte) 6)))
+                .build();
+        Bmv2Action action = Bmv2Action.builder()
+                .withName(ACTION)
+                .addParameter(ImmutableByteSequence.copyFrom((short) TARGET_ID))
+                .addParameter(ImmutableByteSequence.copyFrom(registerId))
+                .build();
+        return new Bmv2ParsedTableEntry(entryId, key, action, 0);
+    }
+
+    private static byte[] address(int host) {
+        return Ip4Address.valueOf("10.0.0." + host).toOctets();
+    }
+
+    @Test
+    public void inSync() throws Bmv2RuntimeException {
+        List<FlowRule> rules = ImmutableList.of(rule(2, 0), rule(3, 1));
+        device.add(entry(1, 2, 0));
+        device.add(entry(2, 3, 1));
+        assertTrue(reconciler.audit(DEVICE, rules).isEmpty());
+        assertTrue(reconciler.audit(DEVICE, rules).isEmpty());
+    }
+
+    @Test
+    public void missingEntry() throws Bmv2RuntimeException {
+        List<FlowRule> rules = ImmutableList.of(rule(2, 0), rule(3, 1));
+        device.add(entry(1, 2, 0));
+        assertTrue(reconciler.audit(DEVICE, rules).isEmpty());
+        TableReconciler.Delta delta = reconciler.audit(DEVICE, rules);
+        assertEquals(ImmutableSet.of(rule(3, 1)), delta.missing());
+        assertTrue(delta.stale().isEmpty());
+    }
+
+    @Test
+    public void modifiedAction() throws Bmv2RuntimeException {
+        List<FlowRule> rules = ImmutableList.of(rule(2, 0), rule(3, 1));
+        device.add(entry(1, 2, 0));
+        device.add(entry(2, 3, 7));
+        assertTrue(reconciler.audit(DEVICE, rules).isEmpty());
+        TableReconciler.Delta delta = reconciler.audit(DEVICE, rules);
+        assertEquals(ImmutableSet.of(rule(3, 1)), delta.missing());
+        // Reinstalling the rule replaces the entry, which is therefore not stale.
+        assertTrue(delta.stale().isEmpty());
+    }
+
+    @Test
+    public void orphanEntry() throws Bmv2RuntimeException {
+        List<FlowRule> rules = ImmutableList.of(rule(2, 0));
+        device.add(entry(1, 2, 0));
+        device.add(entry(5, 4, 3));
+        assertTrue(reconciler.audit(DEVICE, rules).isEmpty());
+        TableReconciler.Delta delta = reconciler.audit(DEVICE, rules);
+        assertTrue(delta.missing().isEmpty());
+        assertTrue(delta.stale().isEmpty());
+        assertEquals(ImmutableSet.of(5L), delta.orphans().get(TABLE));
+    }
+
+    @Test
+    public void staleEntryOfKnownRule() throws Bmv2RuntimeException {
+        // Known to the flow rule service, e.g. a rule of another app or no longer wanted.
+        List<FlowRule> rules = ImmutableList.of(rule(2, 0));
+        List<FlowRule> known = ImmutableList.of(rule(4, 3), rule(6, 5));
+        device.add(entry(1, 2, 0));
+        device.add(entry(5, 4, 3));
+        assertTrue(reconciler.audit(DEVICE, rules, known).isEmpty());
+        TableReconciler.Delta delta = reconciler.audit(DEVICE, rules, known);
+        assertTrue(delta.missing().isEmpty());
+        assertEquals(ImmutableSet.of(rule(4, 3)), delta.stale());
+        assertTrue(delta.orphans().isEmpty());
+    }
+
+    @Test
+    public void differenceSeenOnceIsNotReported() throws Bmv2RuntimeException {
+        List<FlowRule> rules = ImmutableList.of(rule(2, 0), rule(3, 1));
+        device.add(entry(1, 2, 0));
+        device.add(entry(4, 5, 2));
+        // Rule still being installed, entry still being removed.
+        assertTrue(reconciler.audit(DEVICE, rules).isEmpty());
+        device.remove(4);
+        device.add(entry(2, 3, 1));
+        assertTrue(reconciler.audit(DEVICE, rules).isEmpty());
+
+        // Seen by the latest audit only.
+        device.remove(2);
+        assertTrue(reconciler.audit(DEVICE, rules).isEmpty());
+        device.add(entry(3, 3, 1));
+        assertTrue(reconciler.audit(DEVICE, rules).isEmpty());
+    }
+
+    @Test
+    public void forgottenDeviceStartsOver() throws Bmv2RuntimeException {
+        List<FlowRule> rules = ImmutableList.of(rule(2, 0));
+        assertTrue(reconciler.audit(DEVICE, rules).isEmpty());
+        reconciler.forget(DEVICE);
+        assertTrue(reconciler.audit(DEVICE, rules).isEmpty());
+        assertEquals(ImmutableSet.of(rule(2, 0)), reconciler.audit(DEVICE, rules).missing());
+    }
+
+    /**
+     * A single device holding the audited table.
+     */
+    private static final class FakeTableAccess implements TableAccess {
+        private final Map<Long, Bmv2ParsedTableEntry> entries = Maps.newLinkedHashMap();
+
+        private void add(Bmv2ParsedTableEntry entry) {
+            entries.put(entry.entryId(), entry);
+        }
+
+        private void remove(long entryId) {
+            entries.remove(entryId);
+        }
+
+        @Override
+        public List<Bmv2ParsedTableEntry> entries(DeviceId deviceId, String tableName) {
+            return TABLE.equals(tableName) ? Lists.newArrayList(entries.values()) : Collections.emptyList();
+        }
+
+        @Override
+        public void delete(DeviceId deviceId, String tableName, long entryId) {
+            entries.remove(entryId);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the hierarchical timing wheel.
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void expiryAcrossLevels() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 1000);
+        wheel.schedule("short", 1050);
+        wheel.schedule("medium", 1000 + 10 * 500);
+        wheel.schedule("long", 1000 + 10 * 70000);
+        wheel.schedule("past", 0);
+        assertEquals(4, wheel.size());
+
+        assertEquals(ImmutableList.of("past"), wheel.advance(1010));
+        assertEquals(ImmutableList.of("short"), wheel.advance(1050));
+        assertEquals(ImmutableList.of(), wheel.advance(1000 + 10 * 499));
+        assertEquals(ImmutableList.of("medium"), wheel.advance(1000 + 10 * 500));
+        assertEquals(ImmutableList.of(), wheel.advance(1000 + 10 * 69999));
+        assertEquals(ImmutableList.of("long"), wheel.advance(1000 + 10 * 70000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cancel() {
+        TimingWheel<String> wheel = new TimingWheel<>(1, 0);
+        TimingWheel.Timeout<String> timeout = wheel.schedule("a", 5000);
+        assertTrue(wheel.cancel(timeout));
+        assertFalse(wheel.cancel(timeout));
+        assertEquals(ImmutableList.of(), wheel.advance(10000));
+    }
+
+    @Test
+    public void neverEarlyNeverLate() {
+        TimingWheel<Long> timed = new TimingWheel<>(1, 0);
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            long deadline = random.nextInt(300000) + 1;
+            timed.schedule(deadline, deadline);
+        }
+        for (long now = 997; now < 301000; now += 997) {
+            List<Long> expired = timed.advance(now);
+            for (long deadline : expired) {
+                assertTrue(deadline <= now && deadline > now - 997);
+            }
+        }
+        assertEquals(0, timed.size());
+    }
+}
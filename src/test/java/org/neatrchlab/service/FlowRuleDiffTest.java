@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the flow rule diff.
+ */
+public class FlowRuleDiffTest {
+
+    private static final DeviceId DEVICE = DeviceId.deviceId("bmv2:10.0.0.1:40123#1");
+
+    private static FlowRule rule(int inPort, int outPort) {
+        return rule(1, inPort, outPort);
+    }
+
+    private static FlowRule rule(int app, int inPort, int outPort) {
+        return DefaultFlowRule.builder()
+                .forDevice(DEVICE)
+                .forTable(1)
+                .fromApp(new DefaultApplicationId(app, "test" + app))
+                .withPriority(100)
+                .withSelector(DefaultTrafficSelector.builder().matchInPort(PortNumber.portNumber(inPort)).build())
+                .withTreatment(DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(outPort)).build())
+                .makePermanent()
+                .build();
+    }
+
+    @Test
+    public void addsModifiesAndRemoves() {
+        FlowRule kept = rule(1, 2);
+        FlowRule changedOld = rule(2, 3);
+        FlowRule changedNew = rule(2, 4);
+        FlowRule removed = rule(3, 1);
+        FlowRule added = rule(4, 1);
+
+        FlowRuleDiff diff = FlowRuleDiff.between(ImmutableList.of(kept, changedOld, removed),
+                                                 ImmutableList.of(kept, changedNew, added));
+        assertEquals(ImmutableList.of(changedNew, added), diff.toAdd());
+        assertEquals(ImmutableList.of(removed), diff.toRemove());
+        assertTrue(diff.toReplace().isEmpty());
+        assertEquals(ImmutableList.of(kept, changedNew, added), diff.installed());
+    }
+
+    @Test
+    public void handoverKeepsOneRulePerEntry() {
+        FlowRule sharedOld = rule(1, 1, 2);
+        FlowRule sharedNew = rule(2, 1, 2);
+        FlowRule changedOld = rule(1, 2, 3);
+        FlowRule changedNew = rule(2, 2, 4);
+        FlowRule stale = rule(1, 3, 1);
+        FlowRule added = rule(2, 4, 1);
+
+        FlowRuleDiff diff = FlowRuleDiff.between(ImmutableList.of(sharedOld, changedOld, stale),
+                                                 ImmutableList.of(sharedNew, changedNew, added));
+        // The identical rule of the outgoing app is adopted rather than installed a second time.
+        assertEquals(ImmutableList.of(changedNew, added), diff.toAdd());
+        assertEquals(ImmutableList.of(changedOld), diff.toReplace());
+        assertEquals(ImmutableList.of(stale), diff.toRemove());
+        assertEquals(ImmutableList.of(sharedOld, changedNew, added), diff.installed());
+        assertEquals(sharedOld.id(), diff.installed().get(0).id());
+
+        // Later changes of an adopted rule replace it, other ones are left alone.
+        FlowRule sharedChanged = rule(2, 1, 3);
+        FlowRuleDiff next = FlowRuleDiff.between(diff.installed(), ImmutableList.of(sharedChanged, changedNew, added));
+        assertEquals(ImmutableList.of(sharedChanged), next.toAdd());
+        assertEquals(ImmutableList.of(sharedOld), next.toReplace());
+        assertTrue(next.toRemove().isEmpty());
+        assertTrue(FlowRuleDiff.between(diff.installed(), ImmutableList.of(sharedNew, changedNew, added)).isEmpty());
+    }
+
+    @Test
+    public void unchanged() {
+        assertTrue(FlowRuleDiff.between(ImmutableList.of(rule(1, 2)), ImmutableList.of(rule(1, 2))).isEmpty());
+    }
+}
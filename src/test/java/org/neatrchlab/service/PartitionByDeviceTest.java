@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the per-device partitioning of generated flow rules.
+ */
+public class PartitionByDeviceTest {
+
+    private static final DeviceId D1 = DeviceId.deviceId("bmv2:10.0.0.1:40123#1");
+    private static final DeviceId D2 = DeviceId.deviceId("bmv2:10.0.0.2:40123#2");
+    private static final DeviceId D3 = DeviceId.deviceId("bmv2:10.0.0.3:40123#3");
+
+    private static FlowRule rule(DeviceId deviceId, int port) {
+        return DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .forTable(1)
+                .fromApp(new DefaultApplicationId(1, "test"))
+                .withPriority(100)
+                .withSelector(DefaultTrafficSelector.builder().matchInPort(PortNumber.portNumber(port)).build())
+                .withTreatment(DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(1)).build())
+                .makePermanent()
+                .build();
+    }
+
+    @Test
+    public void groupsInOrderAndKeepsEmptyDevices() {
+        FlowRule a = rule(D1, 1);
+        FlowRule b = rule(D2, 1);
+        FlowRule c = rule(D1, 2);
+        FlowRule other = rule(DeviceId.deviceId("bmv2:10.0.0.9:40123#9"), 1);
+        Map<DeviceId, List<FlowRule>> map = AbstractUpgradableFabricApp.partitionByDevice(
+                Stream.of(D1, D2, D3), ImmutableList.of(a, b, other, c));
+
+        assertEquals(3, map.size());
+        assertEquals(ImmutableList.of(a, c), map.get(D1));
+        assertEquals(ImmutableList.of(b), map.get(D2));
+        assertTrue(map.get(D3).isEmpty());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.Ip4Prefix;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the prefix aggregator.
+ */
+public class PrefixAggregatorTest {
+
+    private static final Ip4Prefix SERVER = Ip4Prefix.valueOf("10.0.0.1/32");
+    private static final int TCP = 6;
+
+    private static PrefixBinding flow(int src, Ip4Prefix dst, String port) {
+        return new PrefixBinding(Ip4Prefix.valueOf(src, Ip4Prefix.MAX_MASK_LENGTH), dst, TCP, port);
+    }
+
+    private static List<PrefixBinding> subnetToServer(String subnet, int hosts, String port) {
+        int base = Ip4Address.valueOf(subnet).toInt();
+        List<PrefixBinding> flows = Lists.newArrayList();
+        for (int i = 0; i < hosts; i++) {
+            flows.add(flow(base + i, SERVER, port));
+        }
+        return flows;
+    }
+
+    @Test
+    public void fullSubnetIsCollapsed() {
+        List<PrefixBinding> result = PrefixAggregator.aggregate(subnetToServer("10.0.1.0", 256, "2"));
+        assertEquals(1, result.size());
+        assertEquals(Ip4Prefix.valueOf("10.0.1.0/24"), result.get(0).srcPrefix());
+        assertEquals(SERVER, result.get(0).dstPrefix());
+    }
+
+    @Test
+    public void partialSubnetKeepsExactCoverage() {
+        // .0 to .4: a /30 plus a single host.
+        List<PrefixBinding> result = PrefixAggregator.aggregate(subnetToServer("10.0.1.0", 5, "2"));
+        assertEquals(ImmutableSet.of(Ip4Prefix.valueOf("10.0.1.0/30"), Ip4Prefix.valueOf("10.0.1.4/32")),
+                     ImmutableSet.of(result.get(0).srcPrefix(), result.get(1).srcPrefix()));
+        assertEquals(2, result.size());
+    }
+
+    @Test
+    public void differentOutputsAreNotMerged() {
+        List<PrefixBinding> flows = subnetToServer("10.0.1.0", 2, "2");
+        flows.add(flow(Ip4Address.valueOf("10.0.1.2").toInt(), SERVER, "3"));
+        flows.add(flow(Ip4Address.valueOf("10.0.1.3").toInt(), SERVER, "3"));
+        assertEquals(2, PrefixAggregator.aggregate(flows).size());
+    }
+
+    @Test
+    public void bothDimensionsAreCollapsed() {
+        List<PrefixBinding> flows = Lists.newArrayList();
+        for (int dst = 0; dst < 4; dst++) {
+            Ip4Prefix server = Ip4Prefix.valueOf(Ip4Address.valueOf("10.0.0.0").toInt() + dst, 32);
+            for (int src = 0; src < 4; src++) {
+                flows.add(flow(Ip4Address.valueOf("10.0.1.0").toInt() + src, server, null));
+            }
+        }
+        List<PrefixBinding> result = PrefixAggregator.aggregate(flows);
+        assertEquals(1, result.size());
+        assertEquals(Ip4Prefix.valueOf("10.0.1.0/30"), result.get(0).srcPrefix());
+        assertEquals(Ip4Prefix.valueOf("10.0.0.0/30"), result.get(0).dstPrefix());
+    }
+
+    @Test
+    public void coveredPrefixesAreDropped() {
+        assertEquals(ImmutableSet.of(Ip4Prefix.valueOf("10.0.0.0/8")),
+                     PrefixAggregator.merge(Lists.newArrayList(Ip4Prefix.valueOf("10.0.0.0/8"),
+                                                               Ip4Prefix.valueOf("10.1.2.0/24"))));
+        assertTrue(PrefixAggregator.aggregate(Lists.newArrayList()).isEmpty());
+    }
+}
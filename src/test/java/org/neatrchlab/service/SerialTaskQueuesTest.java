@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neatrchlab.service;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the serial task queues.
+ */
+public class SerialTaskQueuesTest {
+
+    private final ExecutorService workers = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        workers.shutdownNow();
+    }
+
+    @Test
+    public void runsTasksOfAKeyInOrder() throws InterruptedException {
+        SerialTaskQueues<String> queues = new SerialTaskQueues<>(workers, 1000);
+        List<Integer> executed = Collections.synchronizedList(Lists.newArrayList());
+        CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            int task = i;
+            assertTrue(queues.execute("a", () -> {
+                executed.add(task);
+                done.countDown();
+            }));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int) executed.get(i));
+        }
+        assertEquals(1000, queues.stats().get("a").executed());
+    }
+
+    @Test
+    public void busyKeyDoesNotBlockOthers() throws InterruptedException {
+        SerialTaskQueues<String> queues = new SerialTaskQueues<>(workers, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch other = new CountDownLatch(1);
+        queues.execute("busy", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        queues.execute("busy", () -> { });
+        queues.execute("idle", other::countDown);
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+        assertEquals(1, queues.depth("busy"));
+        release.countDown();
+    }
+
+    @Test
+    public void rejectsTasksBeyondMaxDepth() throws InterruptedException {
+        SerialTaskQueues<String> queues = new SerialTaskQueues<>(workers, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        queues.execute("a", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(queues.execute("a", () -> { }));
+        assertTrue(queues.execute("a", () -> { }));
+        assertFalse(queues.execute("a", () -> { }));
+        assertEquals(1, queues.stats().get("a").rejected());
+        release.countDown();
+    }
+
+    @Test
+    public void clearedKeyStaysSerial() throws InterruptedException {
+        SerialTaskQueues<String> queues = new SerialTaskQueues<>(workers, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        List<String> executed = Collections.synchronizedList(Lists.newArrayList());
+        queues.execute("a", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executed.add("running");
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        queues.execute("a", () -> executed.add("discarded"));
+        queues.clear("a");
+        assertEquals(0, queues.depth("a"));
+
+        // Submitted right after, e.g. by a device coming back, and run only once the running task is over.
+        queues.execute("a", () -> {
+            executed.add("next");
+            done.countDown();
+        });
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Lists.newArrayList("running", "next"), executed);
+    }
+}